@@ -0,0 +1,65 @@
+package org.avlis.vaultsync.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * PeerConfig.isKnownPeer, called for every REST request and FTPS login.
+ *
+ * ./gradlew jmh -PjmhIncludes=PeerConfigBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PeerConfigBenchmark {
+
+    @Param({"4", "64"})
+    int peers;
+
+    PeerConfig peerConfig;
+    String known;
+    String primaryName;
+    String unknown = "stranger.example.org";
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<String,PeerInfo> map = new HashMap<>();
+        for(int i = 0; i < peers; i++) {
+            PeerInfo peer = new PeerInfo();
+            peer.setHost("shard"+i+".example.net");
+            peer.setPrimaryName("vault.shard"+i+".example.net");
+            peer.setRestPort(3022);
+            peer.setFtpsPort(2221);
+            // every fourth peer is switched off
+            peer.setEnabled(i % 4 != 3);
+            map.put("shard"+i, peer);
+        }
+        peerConfig = new PeerConfig();
+        peerConfig.setPeers(map);
+        known = "shard0.example.net";
+        primaryName = "vault.shard0.example.net";
+        // builds the name index outside the measurement
+        peerConfig.isKnownPeer(known);
+    }
+
+    @Benchmark
+    public boolean knownHost() {
+        return peerConfig.isKnownPeer(known);
+    }
+
+    @Benchmark
+    public boolean knownPrimaryName() {
+        return peerConfig.isKnownPeer(primaryName);
+    }
+
+    @Benchmark
+    public boolean unknownPeer() {
+        return peerConfig.isKnownPeer(unknown);
+    }
+}
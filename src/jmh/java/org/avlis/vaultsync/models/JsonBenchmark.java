@@ -0,0 +1,76 @@
+package org.avlis.vaultsync.models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Jackson round trips of the bodies exchanged most often: SyncData on
+ * /v1/sync/start and TransferStatus on every /v1/transfer/status poll.
+ *
+ * ./gradlew jmh -PjmhIncludes=JsonBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    ObjectWriter syncDataWriter;
+    ObjectReader syncDataReader;
+    ObjectWriter statusWriter;
+    ObjectReader statusReader;
+
+    SyncData syncData;
+    String syncDataJson;
+    TransferStatus status;
+    String statusJson;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Spring's mapper is a plain ObjectMapper for these types
+        ObjectMapper mapper = new ObjectMapper();
+        syncDataWriter = mapper.writerFor(SyncData.class);
+        syncDataReader = mapper.readerFor(SyncData.class);
+        statusWriter = mapper.writerFor(TransferStatus.class);
+        statusReader = mapper.readerFor(TransferStatus.class);
+
+        syncData = new SyncData();
+        syncData.setCharacterName("Aribeth de Tylmarande");
+        syncData.setLoginName("neverwinterknight");
+        syncData.setCdkey("QWERTY12");
+        syncData.setFileName("aribethdetylma");
+        syncData.setFileSize(183214);
+        syncData.setChecksum("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        syncDataJson = syncDataWriter.writeValueAsString(syncData);
+
+        status = new TransferStatus(415, 100, null, 0, 0);
+        statusJson = statusWriter.writeValueAsString(status);
+    }
+
+    @Benchmark
+    public String writeSyncData() throws Exception {
+        return syncDataWriter.writeValueAsString(syncData);
+    }
+
+    @Benchmark
+    public SyncData readSyncData() throws Exception {
+        return syncDataReader.readValue(syncDataJson);
+    }
+
+    @Benchmark
+    public String writeTransferStatus() throws Exception {
+        return statusWriter.writeValueAsString(status);
+    }
+
+    @Benchmark
+    public TransferStatus readTransferStatus() throws Exception {
+        return statusReader.readValue(statusJson);
+    }
+}
@@ -0,0 +1,84 @@
+package org.avlis.vaultsync.security;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ftpserver.ftplet.User;
+import org.apache.ftpserver.usermanager.UsernamePasswordAuthentication;
+import org.apache.ftpserver.usermanager.impl.UserMetadata;
+import org.avlis.vaultsync.config.CommonConfig;
+import org.avlis.vaultsync.config.FTPSServerConfig;
+import org.avlis.vaultsync.config.PeerConfig;
+import org.avlis.vaultsync.config.PeerInfo;
+import org.openjdk.jmh.annotations.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * FTPS login by client certificate: pulling the CN out of the subject DN,
+ * the deny list and known peer checks, and building the FtpServer user.
+ *
+ * ./gradlew jmh -PjmhIncludes=CertUserManagerBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CertUserManagerBenchmark {
+
+    // self signed, CN=vault.example.com, OU=VaultSync, O=Example Shard, L=Somewhere, ST=Nowhere, C=US
+    static final String CERT =
+        "-----BEGIN CERTIFICATE-----\n"+
+        "MIICEDCCAbagAwIBAgIJALIsnTkbS52ZMAoGCCqGSM49BAMCMHsxCzAJBgNVBAYT\n"+
+        "AlVTMRAwDgYDVQQIEwdOb3doZXJlMRIwEAYDVQQHEwlTb21ld2hlcmUxFjAUBgNV\n"+
+        "BAoTDUV4YW1wbGUgU2hhcmQxEjAQBgNVBAsTCVZhdWx0U3luYzEaMBgGA1UEAxMR\n"+
+        "dmF1bHQuZXhhbXBsZS5jb20wIBcNMjYxMDE4MTMyNzUwWhgPMjEyNjA5MjQxMzI3\n"+
+        "NTBaMHsxCzAJBgNVBAYTAlVTMRAwDgYDVQQIEwdOb3doZXJlMRIwEAYDVQQHEwlT\n"+
+        "b21ld2hlcmUxFjAUBgNVBAoTDUV4YW1wbGUgU2hhcmQxEjAQBgNVBAsTCVZhdWx0\n"+
+        "U3luYzEaMBgGA1UEAxMRdmF1bHQuZXhhbXBsZS5jb20wWTATBgcqhkjOPQIBBggq\n"+
+        "hkjOPQMBBwNCAAR6HJmuSIC1VguYKWY2jyNDB0QN0IfkqYMrmYCUeiOfb0c4TvH9\n"+
+        "8//iz1a+vsqyq2Zvib2fQht0qy80tnlC4NqmoyEwHzAdBgNVHQ4EFgQUeiS/hQee\n"+
+        "RenbpZAc03TR90vJCBkwCgYIKoZIzj0EAwIDSAAwRQIgGgHGXyFGe+LNSgmT0zlw\n"+
+        "tW3xshtq0led3lzVTD6767MCIQDbXuYHZGbDmmp2m7UtGOlwU/aa139klVcTKbbd\n"+
+        "K5R7RA==\n"+
+        "-----END CERTIFICATE-----\n";
+
+    CertUserManager userManager;
+    UsernamePasswordAuthentication authentication;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Certificate cert = CertificateFactory.getInstance("X.509")
+            .generateCertificate(new ByteArrayInputStream(CERT.getBytes(StandardCharsets.US_ASCII)));
+        UserMetadata metadata = new UserMetadata();
+        metadata.setCertificateChain(new Certificate[] { cert });
+        // the same dummy credentials FTPSSessionFactory logs in with
+        authentication = new UsernamePasswordAuthentication("plugh", "cretin", metadata);
+
+        PeerInfo peer = new PeerInfo();
+        peer.setHost("vault.example.com");
+        peer.setRestPort(3022);
+        peer.setFtpsPort(2221);
+        peer.setEnabled(true);
+        Map<String,PeerInfo> peers = new HashMap<>();
+        peers.put("example", peer);
+        PeerConfig peerConfig = new PeerConfig();
+        peerConfig.setPeers(peers);
+
+        // no deny list file, nothing is blocked
+        DenyListService denyListService = new DenyListService(new CommonConfig(), new SimpleMeterRegistry());
+        userManager = new CertUserManager("/tmp/vaultsync-bench", denyListService, new FTPSServerConfig(), peerConfig);
+    }
+
+    @Benchmark
+    public User authenticate() throws Exception {
+        return userManager.authenticate(authentication);
+    }
+}
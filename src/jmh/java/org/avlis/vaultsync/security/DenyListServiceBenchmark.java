@@ -0,0 +1,66 @@
+package org.avlis.vaultsync.security;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.avlis.vaultsync.config.CommonConfig;
+import org.openjdk.jmh.annotations.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * DenyListService.isCnBlocked, called for every REST request and FTPS login.
+ *
+ * ./gradlew jmh -PjmhIncludes=DenyListServiceBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DenyListServiceBenchmark {
+
+    @Param({"10", "1000"})
+    int entries;
+
+    DenyListService denyListService;
+    Path file;
+    String blocked;
+    String allowed = "vault.example.com";
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# blocked senders");
+        for(int i = 0; i < entries; i++) {
+            lines.add("shard"+i+".example.net   # spamming transfers");
+        }
+        file = Files.createTempFile("deny-bench", ".txt");
+        Files.write(file, lines);
+        blocked = "shard"+(entries / 2)+".example.net";
+
+        CommonConfig commonConfig = new CommonConfig();
+        commonConfig.setCnDenyList(file.toString());
+        denyListService = new DenyListService(commonConfig, new SimpleMeterRegistry());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        denyListService.destroy();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public boolean blockedSender() {
+        return denyListService.isCnBlocked(blocked);
+    }
+
+    @Benchmark
+    public boolean allowedSender() {
+        return denyListService.isCnBlocked(allowed);
+    }
+}
@@ -0,0 +1,92 @@
+package org.avlis.vaultsync.security;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.avlis.vaultsync.util.SubnetMatcher;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.authorization.AuthorizationManager;
+import org.springframework.security.web.access.intercept.RequestAuthorizationContext;
+import org.springframework.security.web.util.matcher.IpAddressMatcher;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * The receiver.subnet check in front of /v1/transfer/** and /v1/admin/**.
+ * The game servers poll /v1/transfer/status every second per player in
+ * transit, so this runs a lot.  perRequestMasks is the old check, which
+ * split receiver.subnet and built an IpAddressMatcher per mask each call.
+ *
+ * ./gradlew jmh -PjmhIncludes=SubnetMatchBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubnetMatchBenchmark {
+
+    // the sample config's default
+    static final String SUBNET = "::1,127.0.0.1,172.16.0.0/12,192.168.0.0/16";
+
+    AuthorizationManager<RequestAuthorizationContext> matcher;
+    RequestAuthorizationContext firstMask;
+    RequestAuthorizationContext lastMask;
+    RequestAuthorizationContext outside;
+    RequestAuthorizationContext ipv6;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SubnetMatcher compiled = SubnetMatcher.compile(SUBNET);
+        matcher = SecurityConfig.fromSubnet(() -> compiled);
+        ipv6 = context("0:0:0:0:0:0:0:1");
+        firstMask = context("127.0.0.1");
+        lastMask = context("192.168.1.20");
+        outside = context("203.0.113.9");
+    }
+
+    /**
+     * The matchers only ask the request for its remote address
+     */
+    private static RequestAuthorizationContext context(String remoteAddr) {
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+            SubnetMatchBenchmark.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class },
+            (proxy, method, args) -> {
+                if(method.getName().equals("getRemoteAddr")) {
+                    return remoteAddr;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+        return new RequestAuthorizationContext(request);
+    }
+
+    @Benchmark
+    public boolean ipv6Loopback() {
+        return matcher.check(() -> null, ipv6).isGranted();
+    }
+
+    @Benchmark
+    public boolean ipv4Loopback() {
+        return matcher.check(() -> null, firstMask).isGranted();
+    }
+
+    @Benchmark
+    public boolean lastMask() {
+        return matcher.check(() -> null, lastMask).isGranted();
+    }
+
+    @Benchmark
+    public boolean outsideSubnet() {
+        return matcher.check(() -> null, outside).isGranted();
+    }
+
+    @Benchmark
+    public boolean perRequestMasks() {
+        return Stream.of(SUBNET.split(",", -1))
+            .map(String::trim)
+            .anyMatch(mask -> new IpAddressMatcher(mask).matches(lastMask.getRequest()));
+    }
+}
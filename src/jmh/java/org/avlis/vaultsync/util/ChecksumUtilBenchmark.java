@@ -0,0 +1,104 @@
+package org.avlis.vaultsync.util;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ChecksumUtil throughput with concurrent callers.  The "bytes" secondary
+ * result is the hashing rate in bytes/s, divide by 1,000,000 for MB/s.
+ *
+ * ./gradlew jmh -PjmhIncludes=ChecksumUtilBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumUtilBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        // typical bic sizes run from a few KB to a couple of MB
+        @Param({"8192", "65536", "1048576", "8388608"})
+        int fileSize;
+
+        ChecksumUtil checksumUtil;
+        Path file;
+        byte[] bytes;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            checksumUtil = new ChecksumUtil();
+            bytes = new byte[fileSize];
+            new Random(42).nextBytes(bytes);
+            file = Files.createTempFile("checksum-bench", ".bic");
+            Files.write(file, bytes);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String file1Thread(Shared shared, Bytes counter) {
+        return hashFile(shared, counter);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String file4Threads(Shared shared, Bytes counter) {
+        return hashFile(shared, counter);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String file16Threads(Shared shared, Bytes counter) {
+        return hashFile(shared, counter);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String staged1Thread(Shared shared, Bytes counter) {
+        return hashBytes(shared, counter);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String staged4Threads(Shared shared, Bytes counter) {
+        return hashBytes(shared, counter);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String staged16Threads(Shared shared, Bytes counter) {
+        return hashBytes(shared, counter);
+    }
+
+    private static String hashFile(Shared shared, Bytes counter) {
+        counter.bytes += shared.fileSize;
+        return shared.checksumUtil.getChecksum(shared.file);
+    }
+
+    private static String hashBytes(Shared shared, Bytes counter) {
+        counter.bytes += shared.fileSize;
+        return shared.checksumUtil.getChecksum(shared.bytes);
+    }
+}
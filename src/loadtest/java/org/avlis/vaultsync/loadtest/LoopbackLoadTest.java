@@ -0,0 +1,486 @@
+package org.avlis.vaultsync.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+
+import org.avlis.vaultsync.models.RequestStatus;
+import org.avlis.vaultsync.models.TransferData;
+import org.avlis.vaultsync.models.TransferKey;
+import org.avlis.vaultsync.models.TransferStatus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Runs two or more vaultsync peers in this JVM, talking mTLS REST and FTPS
+ * to each other over loopback, and plays the game server against the first
+ * one: concurrent /v1/transfer/start requests, each followed by
+ * /v1/transfer/status polls until the transfer finishes.  Prints throughput,
+ * latency percentiles and errors and writes them as JSON.
+ *
+ * Everything the peers need is made up in a temp directory: a CA and
+ * keystores, an in-memory H2 database for the validation query, and a vault
+ * with one character per concurrent player.  Each transfer changes its
+ * character's file so the upload isn't skipped as already present.
+ *
+ * ./gradlew loadTest -PloadTestArgs="--transfers=2000 --concurrency=40"
+ *
+ * To compare the sender's execution modes run the sweep once per mode:
+ *
+ * ./gradlew loadTest -PloadTestArgs="--sweep=10,100 --executionMode=pool"
+ * ./gradlew loadTest -PloadTestArgs="--sweep=10,100 --executionMode=virtual"
+ *
+ * Each level of a sweep gets fresh peers whose sender.maxInFlight,
+ * maxInFlightPerPeer, maxQueued, ftps.client.maxPoolSize and Tomcat's
+ * accept-count are raised to the level, so every player's transfer is
+ * actually in flight, and at least one transfer per player.  Levels in the
+ * thousands need more cores than the peers and players sharing one JVM get
+ * on a small machine, most /start requests time out connecting.
+ *
+ * Options, with their defaults:
+ *   --peers=2           peers to start, the first sends to all the others
+ *   --transfers=500     transfers to measure
+ *   --warmup=50         transfers run first and not measured
+ *   --concurrency=20    players transferring at once
+ *   --sweep=10,100 run once per concurrency level instead, see above
+ *   --executionMode=pool|virtual  the peers' sender.executionMode
+ *   --size=131072       bytes in each character file
+ *   --poll=100          milliseconds between status polls
+ *   --timeout=120       seconds before a transfer is given up on
+ *   --results=build/results/loadtest/results.json, the peers' log goes beside it.
+ *                       A sweep writes an array with one entry per level
+ *   --keep              leave the temp directory behind
+ * Anything else, eg. --sender.maxInFlight=40, is passed to every peer.
+ */
+public class LoopbackLoadTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .enable(SerializationFeature.INDENT_OUTPUT);
+
+    private int peerCount = 2;
+    private int transfers = 500;
+    private int warmup = 50;
+    private int concurrency = 20;
+    private List<Integer> sweep = null;
+    private String executionMode = null;
+    private int size = 131072;
+    private int pollMillis = 100;
+    private int timeoutSeconds = 120;
+    private Path resultsFile = Paths.get("build", "results", "loadtest", "results.json");
+    private boolean keep = false;
+    private List<String> peerArgs = new ArrayList<>();
+
+    private List<LoopbackPeer> peers = new ArrayList<>();
+    private boolean logStarted = false;
+    private HttpClient httpClient;
+    private URI senderUri;
+
+    public static void main(String[] args) throws Exception {
+        LoopbackLoadTest loadTest = new LoopbackLoadTest();
+        loadTest.parse(args);
+        boolean completedAny = loadTest.run();
+        System.exit(completedAny ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for(String arg : args) {
+            String[] parts = arg.split("=", 2);
+            String value = parts.length > 1 ? parts[1] : "";
+            switch(parts[0]) {
+                case "--peers": peerCount = Integer.parseInt(value); break;
+                case "--transfers": transfers = Integer.parseInt(value); break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--concurrency": concurrency = Integer.parseInt(value); break;
+                case "--sweep":
+                    sweep = new ArrayList<>();
+                    for(String level : value.split(",")) {
+                        sweep.add(Integer.parseInt(level.trim()));
+                    }
+                    break;
+                case "--executionMode":
+                    if(!value.matches("pool|virtual")) {
+                        throw new IllegalArgumentException("--executionMode must be pool or virtual");
+                    }
+                    executionMode = value;
+                    break;
+                case "--size": size = Integer.parseInt(value); break;
+                case "--poll": pollMillis = Integer.parseInt(value); break;
+                case "--timeout": timeoutSeconds = Integer.parseInt(value); break;
+                case "--results": resultsFile = Paths.get(value); break;
+                case "--keep": keep = true; break;
+                default: peerArgs.add(arg); break;
+            }
+        }
+        if(peerCount < 2) {
+            throw new IllegalArgumentException("--peers must be at least 2");
+        }
+    }
+
+    /**
+     * @return whether any transfer completed
+     */
+    private boolean run() throws Exception {
+        if(sweep == null) {
+            Map<String, Object> json = stage(transfers, peerArgs);
+            MAPPER.writeValue(resultsFile.toFile(), json);
+            System.out.println("Results written to "+resultsFile);
+            return (int) json.get("completed") > 0;
+        }
+
+        List<Map<String, Object>> levels = new ArrayList<>();
+        for(int level : sweep) {
+            concurrency = level;
+            List<String> args = new ArrayList<>();
+            args.add("--sender.maxInFlight="+level);
+            args.add("--sender.maxInFlightPerPeer="+level);
+            args.add("--sender.maxQueued="+level);
+            args.add("--ftps.client.maxPoolSize="+level);
+            args.add("--ftps.server.maxlogins="+level);
+            // every player connects at once
+            args.add("--server.tomcat.accept-count="+level);
+            // the user's settings win
+            args.addAll(peerArgs);
+            System.out.println();
+            System.out.println("=== "+level+" concurrent transfers ===");
+            levels.add(stage(Math.max(transfers, level), args));
+        }
+
+        System.out.println();
+        System.out.println("Sweep, execution mode "+(executionMode == null ? "default" : executionMode));
+        System.out.println("concurrent  transfers/s   p50 ms   p99 ms   errors");
+        for(Map<String, Object> json : levels) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> latency = (Map<String, Object>) json.get("transferMillis");
+            System.out.printf("%10d %12.1f %8.1f %8.1f %8d%n", json.get("concurrency"), json.get("transfersPerSecond"),
+                latency.get("p50"), latency.get("p99"), json.get("errors"));
+        }
+        MAPPER.writeValue(resultsFile.toFile(), levels);
+        System.out.println("Results written to "+resultsFile);
+        return levels.stream().anyMatch(json -> (int) json.get("completed") > 0);
+    }
+
+    /**
+     * Starts the peers, runs the warmup and count measured transfers at the
+     * current concurrency and stops them again
+     */
+    private Map<String, Object> stage(int count, List<String> args) throws Exception {
+        Path root = Files.createTempDirectory("vaultsync-loopback");
+        try {
+            setup(root, args);
+            List<Player> players = makePlayers();
+
+            if(warmup > 0) {
+                System.out.println("Warming up with "+warmup+" transfers");
+                drive(players, warmup);
+            }
+            System.out.println("Measuring "+count+" transfers, "+concurrency+" at a time");
+            Results results = drive(players, count);
+            return report(results);
+        } finally {
+            for(LoopbackPeer peer : peers) {
+                peer.stop();
+            }
+            peers.clear();
+            if(keep) {
+                System.out.println("Left the peers' files in "+root);
+            } else {
+                delete(root);
+            }
+        }
+    }
+
+    private void setup(Path root, List<String> args) throws Exception {
+        Path pkiDir = Files.createDirectories(root.resolve("pki"));
+        LoopbackPki pki = new LoopbackPki(pkiDir);
+        pki.createCa();
+
+        // a passive port for every session in the FTPS client pool, and some spare
+        int dataPorts = Math.max(concurrency, 20) + 10;
+        for(int i = 0; i < peerCount; i++) {
+            String name = "peer"+i;
+            peers.add(new LoopbackPeer(name, root, pki.createPeer(name+".loopback"), dataPorts));
+        }
+        Path logFile = resultsFile.toAbsolutePath().resolveSibling("peers.log");
+        Files.createDirectories(logFile.getParent());
+        // a sweep's levels share one log
+        if(!logStarted) {
+            Files.deleteIfExists(logFile);
+            logStarted = true;
+        }
+        System.out.println("Peers log to "+logFile);
+        List<String> startArgs = new ArrayList<>();
+        if(executionMode != null) {
+            startArgs.add("--sender.executionMode="+executionMode);
+        }
+        startArgs.addAll(args);
+        for(LoopbackPeer peer : peers) {
+            long start = System.nanoTime();
+            peer.start(pki.getTrustStore(), logFile, peers, startArgs);
+            System.out.println("Started "+peer.getName()+" on port "+peer.getRestPort()+" in "
+                +TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+"ms");
+        }
+
+        SSLContext sslContext = pki.clientContext();
+        httpClient = HttpClient.newBuilder()
+            .sslContext(sslContext)
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+        senderUri = URI.create("https://localhost:"+peers.get(0).getRestPort());
+    }
+
+    /**
+     * One character per concurrent player in the sender's vault, spread
+     * round robin over the other peers
+     */
+    private List<Player> makePlayers() throws IOException {
+        List<Player> players = new ArrayList<>();
+        for(int i = 0; i < concurrency; i++) {
+            String destination = peers.get(1 + i % (peerCount - 1)).getName();
+            Player player = new Player(i, destination, peers.get(0).getVaultPath(), size);
+            player.touch();
+            players.add(player);
+        }
+        return players;
+    }
+
+    private Results drive(List<Player> players, int count) throws InterruptedException {
+        Results results = new Results(count);
+        AtomicInteger remaining = new AtomicInteger(count);
+        ExecutorService executor = Executors.newFixedThreadPool(players.size());
+
+        long start = System.nanoTime();
+        for(Player player : players) {
+            executor.execute(() -> {
+                while(remaining.getAndDecrement() > 0) {
+                    transfer(player, results);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        results.elapsedNanos = System.nanoTime() - start;
+        return results;
+    }
+
+    private void transfer(Player player, Results results) {
+        long start = System.nanoTime();
+        try {
+            player.touch();
+
+            long requestStart = System.nanoTime();
+            RequestStatus started = post("/v1/transfer/start", player.transferData(), RequestStatus.class);
+            results.startLatency.add(System.nanoTime() - requestStart);
+            if(started.getStatusCode() != -1) {
+                results.error("start "+started.getStatusCode());
+                return;
+            }
+
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while(true) {
+                Thread.sleep(pollMillis);
+                requestStart = System.nanoTime();
+                TransferStatus status = post("/v1/transfer/status", player.transferKey(), TransferStatus.class);
+                results.statusLatency.add(System.nanoTime() - requestStart);
+                if(status.getStatusCode() == 200) {
+                    results.transferLatency.add(System.nanoTime() - start);
+                    results.completed();
+                    return;
+                }
+                if(status.getStatusCode() >= 200) {
+                    results.error("transfer "+status.getStatusCode());
+                    return;
+                }
+                if(System.nanoTime() > deadline) {
+                    results.error("timeout");
+                    // free the character up for its next transfer
+                    post("/v1/transfer/abort", player.transferKey(), RequestStatus.class);
+                    return;
+                }
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            results.error("interrupted");
+        } catch(Exception ex) {
+            results.error(ex.getClass().getSimpleName());
+        }
+    }
+
+    private <T> T post(String path, Object body, Class<T> type) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(senderUri.resolve(path))
+            .header("Content-Type", "application/json")
+            .timeout(Duration.ofSeconds(30))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(MAPPER.writeValueAsBytes(body)))
+            .build();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if(response.statusCode() != 200) {
+            throw new IOException("HTTP "+response.statusCode()+" from "+path);
+        }
+        return MAPPER.readValue(response.body(), type);
+    }
+
+    private Map<String, Object> report(Results results) {
+        double seconds = results.elapsedNanos / 1e9;
+        int errors = results.errorCount();
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("peers", peerCount);
+        json.put("executionMode", executionMode == null ? "default" : executionMode);
+        json.put("concurrency", concurrency);
+        json.put("fileSize", size);
+        json.put("transfers", results.requested);
+        json.put("completed", results.completed.get());
+        json.put("errors", errors);
+        json.put("errorRate", results.requested == 0 ? 0 : (double) errors / results.requested);
+        json.put("errorsByType", results.errors);
+        json.put("seconds", seconds);
+        json.put("transfersPerSecond", results.completed.get() / seconds);
+        json.put("transferMillis", results.transferLatency.summary());
+        json.put("startMillis", results.startLatency.summary());
+        json.put("statusMillis", results.statusLatency.summary());
+
+        System.out.println();
+        System.out.printf("%d peers, %d concurrent, %d byte files%n", peerCount, concurrency, size);
+        System.out.printf("Completed %d of %d in %.1fs, %.1f transfers/s%n",
+            results.completed.get(), results.requested, seconds, results.completed.get() / seconds);
+        System.out.printf("Errors    %d (%.2f%%) %s%n", errors,
+            results.requested == 0 ? 0 : 100.0 * errors / results.requested, results.errors);
+        System.out.println("Latency ms      p50      p90      p99      max");
+        print("transfer", results.transferLatency);
+        print("/start", results.startLatency);
+        print("/status", results.statusLatency);
+        return json;
+    }
+
+    private static void print(String name, Latencies latencies) {
+        System.out.printf("%-10s %8.1f %8.1f %8.1f %8.1f%n", name,
+            latencies.percentile(0.50), latencies.percentile(0.90),
+            latencies.percentile(0.99), latencies.percentile(1.0));
+    }
+
+    private static void delete(Path root) throws IOException {
+        try(Stream<Path> paths = Files.walk(root)) {
+            List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            Collections.reverse(all);
+            for(Path path : all) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * A character in the sender's vault, only ever transferred by one thread
+     */
+    private static class Player {
+        private final TransferData data = new TransferData();
+        private final TransferKey key = new TransferKey();
+        private final Path file;
+        private final byte[] contents;
+
+        Player(int index, String destination, Path vaultPath, int size) throws IOException {
+            String login = "loadtest"+index;
+            data.setCharacterName("Load Test "+index);
+            data.setLoginName(login);
+            data.setCdkey(String.format("LT%06d", index));
+            data.setFileName("loadtest"+index);
+            data.setDestination(destination);
+            key.setCdkey(data.getCdkey());
+            key.setCharacterName(data.getCharacterName());
+            key.setDestination(destination);
+
+            file = Files.createDirectories(vaultPath.resolve(login)).resolve(data.getFileName()+".bic");
+            contents = new byte[size];
+        }
+
+        /**
+         * New contents so the peer can't skip the upload
+         */
+        void touch() throws IOException {
+            ThreadLocalRandom.current().nextBytes(contents);
+            Files.write(file, contents);
+        }
+
+        TransferData transferData() {
+            return data;
+        }
+
+        TransferKey transferKey() {
+            return key;
+        }
+    }
+
+    private static class Results {
+        final int requested;
+        final AtomicInteger completed = new AtomicInteger();
+        final Map<String, Integer> errors = new ConcurrentSkipListMap<>();
+        final Latencies transferLatency = new Latencies();
+        final Latencies startLatency = new Latencies();
+        final Latencies statusLatency = new Latencies();
+        long elapsedNanos;
+
+        Results(int requested) {
+            this.requested = requested;
+        }
+
+        void completed() {
+            completed.incrementAndGet();
+        }
+
+        void error(String type) {
+            errors.merge(type, 1, Integer::sum);
+        }
+
+        int errorCount() {
+            return errors.values().stream().mapToInt(Integer::intValue).sum();
+        }
+    }
+
+    private static class Latencies {
+        private final List<Long> nanos = new ArrayList<>();
+        private long[] sorted = null;
+
+        synchronized void add(long value) {
+            nanos.add(value);
+            sorted = null;
+        }
+
+        /**
+         * In milliseconds, 0 when nothing was recorded
+         */
+        synchronized double percentile(double p) {
+            if(nanos.isEmpty()) {
+                return 0;
+            }
+            if(sorted == null) {
+                sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+        Map<String, Object> summary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", count());
+            summary.put("p50", percentile(0.50));
+            summary.put("p90", percentile(0.90));
+            summary.put("p99", percentile(0.99));
+            summary.put("max", percentile(1.0));
+            return summary;
+        }
+
+        synchronized int count() {
+            return nanos.size();
+        }
+    }
+}
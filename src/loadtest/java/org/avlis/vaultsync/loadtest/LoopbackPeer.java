@@ -0,0 +1,177 @@
+package org.avlis.vaultsync.loadtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.avlis.vaultsync.VaultSyncApplication;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * One vaultsync instance in the load test's JVM with its own directories,
+ * ports, keystore and in-memory database.  Everything is passed as command
+ * line properties so they win over the application.yml on the classpath.
+ */
+class LoopbackPeer {
+
+    // the validation query runs against this on every /v1/sync/start
+    static final String SCHEMA = "CREATE TABLE IF NOT EXISTS banned(login VARCHAR(64), cdkey VARCHAR(16))";
+
+    private final String name;
+    private final String commonName;
+    private final Path vaultPath;
+    private final Path ftpHomeDirs;
+    private final Path keyStore;
+    private final int restPort;
+    private final int ftpsPort;
+    private final String dataPortRange;
+
+    private ConfigurableApplicationContext context = null;
+
+    LoopbackPeer(String name, Path root, Path keyStore, int dataPorts) throws IOException {
+        this.name = name;
+        this.commonName = name+".loopback";
+        this.vaultPath = Files.createDirectories(root.resolve(name).resolve("vault"));
+        this.ftpHomeDirs = Files.createDirectories(root.resolve(name).resolve("home"));
+        this.keyStore = keyStore;
+        this.restPort = freePort();
+        this.ftpsPort = freePort();
+        int first = freePortRange(dataPorts);
+        this.dataPortRange = first+"-"+(first + dataPorts - 1);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getCommonName() {
+        return commonName;
+    }
+
+    Path getVaultPath() {
+        return vaultPath;
+    }
+
+    int getRestPort() {
+        return restPort;
+    }
+
+    /**
+     * Starts the application context
+     * @param peers every peer in the test, the others are configured as this one's peers
+     * @param extra more --property=value arguments, they replace the harness' settings
+     */
+    void start(Path trustStore, Path logFile, List<LoopbackPeer> peers, List<String> extra) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("spring.config.location", "classpath:/application.yml");
+        properties.put("spring.datasource.url", "jdbc:h2:mem:"+name+";DB_CLOSE_DELAY=-1;INIT="+SCHEMA);
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.datasource.password", "");
+        // the peers share a JVM, keep their meters apart
+        properties.put("management.metrics.use-global-registry", "false");
+        // logging is shared by the whole JVM, every peer logs to the same file
+        properties.put("logging.file.name", logFile.toString());
+        properties.put("logging.pattern.console", "");
+
+        properties.put("common.ftpHomeDirs", ftpHomeDirs.toString());
+        properties.put("common.vaultPath", vaultPath.toString());
+        properties.put("common.publicAddress", "127.0.0.1");
+
+        properties.put("keystores.loopbackKeyStore.type", "keystore");
+        properties.put("keystores.loopbackKeyStore.filePath", keyStore.toString());
+        properties.put("keystores.loopbackKeyStore.filePassword", LoopbackPki.PASSWORD);
+        properties.put("keystores.loopbackKeyStore.keyPassword", LoopbackPki.PASSWORD);
+        properties.put("keystores.loopbackKeyStore.keyAlias", LoopbackPki.KEY_ALIAS);
+        properties.put("keystores.loopbackTrustStore.type", "truststore");
+        properties.put("keystores.loopbackTrustStore.filePath", trustStore.toString());
+        properties.put("keystores.loopbackTrustStore.filePassword", LoopbackPki.PASSWORD);
+
+        for(LoopbackPeer peer : peers) {
+            if(peer == this) {
+                continue;
+            }
+            String prefix = "peers."+peer.name+".";
+            properties.put(prefix+"host", "localhost");
+            // every peer is localhost, they're told apart by certificate
+            properties.put(prefix+"primaryName", peer.commonName);
+            properties.put(prefix+"restPort", String.valueOf(peer.restPort));
+            properties.put(prefix+"ftpsPort", String.valueOf(peer.ftpsPort));
+            properties.put(prefix+"enabled", "true");
+        }
+
+        properties.put("ftps.server.port", String.valueOf(ftpsPort));
+        properties.put("ftps.server.keyStore", "loopbackKeyStore");
+        properties.put("ftps.server.trustStore", "loopbackTrustStore");
+        properties.put("ftps.server.dataportrange", dataPortRange);
+        properties.put("ftps.client.minPoolSize", "5");
+        properties.put("ftps.client.maxPoolSize", "20");
+        properties.put("ftps.client.keyStore", "loopbackKeyStore");
+        properties.put("ftps.client.trustStore", "loopbackTrustStore");
+
+        properties.put("sender.keyStore", "loopbackKeyStore");
+        properties.put("sender.trustStore", "loopbackTrustStore");
+
+        properties.put("receiver.keyStore", "loopbackKeyStore");
+        properties.put("receiver.trustStore", "loopbackTrustStore");
+        properties.put("receiver.serverPort", String.valueOf(restPort));
+        properties.put("receiver.validationQueries[0].query", "FROM banned WHERE login = :login OR cdkey = :cdkey");
+        properties.put("receiver.validationQueries[0].rejectionCode", "403");
+        properties.put("receiver.validationQueries[0].rejectionReason", "Banned");
+
+        for(String arg : extra) {
+            String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+            properties.put(parts[0], parts.length > 1 ? parts[1] : "");
+        }
+
+        List<String> args = new ArrayList<>();
+        properties.forEach((key, value) -> args.add("--"+key+"="+value));
+        context = new SpringApplicationBuilder(VaultSyncApplication.class)
+            .bannerMode(Banner.Mode.OFF)
+            .run(args.toArray(new String[0]));
+    }
+
+    void stop() {
+        if(context != null) {
+            context.close();
+            context = null;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * First of count free ports in a row, for the FTPS passive port range
+     */
+    private static int freePortRange(int count) throws IOException {
+        for(int attempt = 0; attempt < 50; attempt++) {
+            int first = freePort();
+            if(first + count > 65535) {
+                continue;
+            }
+            boolean free = true;
+            for(int port = first + 1; port < first + count && free; port++) {
+                try {
+                    new ServerSocket(port, 0, InetAddress.getLoopbackAddress()).close();
+                } catch(IOException ex) {
+                    free = false;
+                }
+            }
+            if(free) {
+                return first;
+            }
+        }
+        throw new IOException("No range of "+count+" free ports found");
+    }
+}
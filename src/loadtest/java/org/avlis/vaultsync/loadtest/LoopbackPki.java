@@ -0,0 +1,116 @@
+package org.avlis.vaultsync.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A throwaway CA and a keystore for each peer, made with the JDK's keytool
+ * so there's nothing extra to depend on.  Every peer's certificate is signed
+ * by the CA and good for localhost and 127.0.0.1, so the REST client's
+ * hostname check passes with every peer listening on loopback.
+ */
+class LoopbackPki {
+
+    static final String PASSWORD = "loopback";
+    static final String KEY_ALIAS = "peer";
+
+    private final Path dir;
+    private final Path caStore;
+    private final Path caCert;
+    private final Path trustStore;
+    private final String keytool;
+
+    LoopbackPki(Path dir) {
+        this.dir = dir;
+        this.caStore = dir.resolve("ca.p12");
+        this.caCert = dir.resolve("ca.pem");
+        this.trustStore = dir.resolve("trust-store.p12");
+        this.keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+    }
+
+    /**
+     * Makes the CA and a truststore holding its certificate
+     */
+    void createCa() throws IOException {
+        keytool("-genkeypair", "-alias", "ca", "-keyalg", "RSA", "-keysize", "2048",
+            "-dname", "CN=VaultSync Loopback CA", "-ext", "bc:c", "-validity", "2",
+            "-keystore", caStore.toString(), "-storetype", "PKCS12", "-storepass", PASSWORD);
+        keytool("-exportcert", "-rfc", "-alias", "ca",
+            "-keystore", caStore.toString(), "-storepass", PASSWORD, "-file", caCert.toString());
+        keytool("-importcert", "-noprompt", "-alias", "ca", "-file", caCert.toString(),
+            "-keystore", trustStore.toString(), "-storetype", "PKCS12", "-storepass", PASSWORD);
+    }
+
+    /**
+     * A keystore with a key for commonName under KEY_ALIAS, signed by the CA
+     */
+    Path createPeer(String commonName) throws IOException {
+        Path store = dir.resolve(commonName+".p12");
+        Path request = dir.resolve(commonName+".csr");
+        Path cert = dir.resolve(commonName+".pem");
+
+        keytool("-genkeypair", "-alias", KEY_ALIAS, "-keyalg", "RSA", "-keysize", "2048",
+            "-dname", "CN="+commonName+", OU=VaultSync Loopback", "-validity", "2",
+            "-keystore", store.toString(), "-storetype", "PKCS12", "-storepass", PASSWORD);
+        keytool("-certreq", "-alias", KEY_ALIAS,
+            "-keystore", store.toString(), "-storepass", PASSWORD, "-file", request.toString());
+        keytool("-gencert", "-alias", "ca", "-keystore", caStore.toString(), "-storepass", PASSWORD,
+            "-infile", request.toString(), "-outfile", cert.toString(), "-rfc", "-validity", "2",
+            "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-ext", "EKU=serverAuth,clientAuth");
+        // the CA goes in first so the signed certificate's chain can be built
+        keytool("-importcert", "-noprompt", "-alias", "ca", "-file", caCert.toString(),
+            "-keystore", store.toString(), "-storepass", PASSWORD);
+        keytool("-importcert", "-alias", KEY_ALIAS, "-file", cert.toString(),
+            "-keystore", store.toString(), "-storepass", PASSWORD);
+        return store;
+    }
+
+    Path getTrustStore() {
+        return trustStore;
+    }
+
+    /**
+     * What the game server uses for /v1/transfer/*, it trusts the CA but
+     * doesn't present a certificate
+     */
+    SSLContext clientContext() throws IOException, GeneralSecurityException {
+        KeyStore trust = KeyStore.getInstance(trustStore.toFile(), PASSWORD.toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trust);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private void keytool(String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(keytool);
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .start();
+        String output;
+        try(InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try {
+            if(process.waitFor() != 0) {
+                throw new IOException("keytool "+args[0]+" failed: "+output.trim());
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for keytool", ex);
+        }
+    }
+}
@@ -3,116 +3,519 @@ package org.avlis.vaultsync;
 import java.io.*;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 
 import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.commons.net.ftp.FTPReply;
 import org.apache.commons.net.util.KeyManagerUtils;
 import org.apache.commons.net.util.TrustManagerUtils;
-import org.avlis.vaultsync.config.KeystoreInfo;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactoryBuilder;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.avlis.vaultsync.models.RequestData;
+import org.avlis.vaultsync.models.RequestStatus;
+import org.avlis.vaultsync.models.StartResults;
+import org.avlis.vaultsync.models.SyncData;
+import org.avlis.vaultsync.util.ChecksumUtil;
+import org.avlis.vaultsync.util.PeerFTPSClient;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Capacity tests a live peer.  Each worker drives the peer through
+ * /v1/sync/start, the FTPS upload and /v1/sync/verify the way SendClient
+ * does, back to back until the duration or transfer count runs out.  Prints
+ * throughput, per phase percentiles and a histogram of whole transfers.
+ *
+ * The keystore's certificate has to be one the peer knows as a peer, and
+ * the peer's validation queries see the login and cdkeys used here.  Each
+ * worker sends as its own cdkey so they don't trip over each other's
+ * pending transfers.  The bics are random bytes and land in the peer's
+ * vault under the login.
+ *
+ * Run with ./gradlew sendClient -PsendClientArgs="--host=... --concurrency=..."
+ *
+ * Options, --name=value:
+ *   --host=localhost
+ *   --restPort=3022
+ *   --ftpsPort=2221
+ *   --keyStore=./config/otherkeys.jks  JKS, or PKCS12 when it ends in .p12 or .pfx
+ *   --keyStorePassword=otherkey
+ *   --keyAlias=other
+ *   --keyPassword=otherkey
+ *   --trustStore=./config/trust-store.jks
+ *   --trustStorePassword=changeit
+ *   --concurrency=4     workers sending at once
+ *   --duration=60       seconds to run for
+ *   --transfers=0       stop after this many transfers, 0 runs for the whole duration
+ *   --sizes=128k        bic sizes to pick from as size[:weight],...  eg. 16k:3,128k:6,1m:1
+ *   --buffer=4096       bytes per write to the data connection
+ *   --reuse=true        keep each worker's FTPS session and the REST connections
+ *                       between transfers, false connects and logs in every time
+ *   --compression=false ask for MODE Z and deflate the uploads
+ *   --login=loadtest
+ *   --cdkeyPrefix=LT    worker n sends as cdkey LT000n
+ */
 @Slf4j
 public class StandaloneSendClient {
-	public static void main(String[] args) {
-        new StandaloneSendClient().doSend();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // upper bounds of the histogram buckets in milliseconds
+    private static final long[] BUCKETS = { 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+    private String host = "localhost";
+    private int restPort = 3022;
+    private int ftpsPort = 2221;
+    private String keyStore = "./config/otherkeys.jks";
+    private String keyStorePassword = "otherkey";
+    private String keyAlias = "other";
+    private String keyPassword = "otherkey";
+    private String trustStore = "./config/trust-store.jks";
+    private String trustStorePassword = "changeit";
+    private int concurrency = 4;
+    private int durationSeconds = 60;
+    private int transfers = 0;
+    private String sizes = "128k";
+    private int bufferSize = 4096;
+    private boolean reuse = true;
+    private boolean compression = false;
+    private String login = "loadtest";
+    private String cdkeyPrefix = "LT";
+
+    private SSLContext sslContext;
+    private ChecksumUtil checksumUtil;
+    private SizeDistribution sizeDistribution;
+    // shared by every worker when connections are reused
+    private CloseableHttpClient sharedHttpClient;
+
+    private final Latencies startLatency = new Latencies();
+    private final Latencies connectLatency = new Latencies();
+    private final Latencies uploadLatency = new Latencies();
+    private final Latencies verifyLatency = new Latencies();
+    private final Latencies transferLatency = new Latencies();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final Map<String,AtomicInteger> errors = new ConcurrentSkipListMap<>();
+
+    public static void main(String[] args) throws Exception {
+        StandaloneSendClient client = new StandaloneSendClient();
+        client.parseArgs(args);
+        System.exit(client.run() ? 0 : 1);
     }
 
-    public void doSend() {
-        FTPSClient ftpsClient;
+    private void parseArgs(String[] args) {
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got "+arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch(name) {
+                case "host": host = value; break;
+                case "restPort": restPort = Integer.parseInt(value); break;
+                case "ftpsPort": ftpsPort = Integer.parseInt(value); break;
+                case "keyStore": keyStore = value; break;
+                case "keyStorePassword": keyStorePassword = value; break;
+                case "keyAlias": keyAlias = value; break;
+                case "keyPassword": keyPassword = value; break;
+                case "trustStore": trustStore = value; break;
+                case "trustStorePassword": trustStorePassword = value; break;
+                case "concurrency": concurrency = Integer.parseInt(value); break;
+                case "duration": durationSeconds = Integer.parseInt(value); break;
+                case "transfers": transfers = Integer.parseInt(value); break;
+                case "sizes": sizes = value; break;
+                case "buffer": bufferSize = (int) parseSize(value); break;
+                case "reuse": reuse = Boolean.parseBoolean(value); break;
+                case "compression": compression = Boolean.parseBoolean(value); break;
+                case "login": login = value; break;
+                case "cdkeyPrefix": cdkeyPrefix = value; break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --"+name);
+            }
+        }
+        sizeDistribution = new SizeDistribution(sizes);
+    }
+
+    /**
+     * @return true if at least one transfer completed
+     */
+    public boolean run() throws Exception {
+        sslContext = makeSSLContext();
+        checksumUtil = new ChecksumUtil();
+        if(reuse) {
+            sharedHttpClient = makeHttpClient(concurrency);
+        }
+
+        System.out.println("Sending to "+host+" REST "+restPort+" FTPS "+ftpsPort+" with "+concurrency+" workers for "
+            +durationSeconds+"s"+(transfers > 0 ? " or "+transfers+" transfers" : "")
+            +", sizes "+sizes+", "+bufferSize+" byte writes, connection reuse "+(reuse ? "on" : "off")
+            +(compression ? ", MODE Z" : ""));
 
-        KeystoreInfo keystoreInfo = new KeystoreInfo();
-        keystoreInfo.setFilePath("./config/otherkeys.jks");
-        keystoreInfo.setFilePassword("otherkey");
-        keystoreInfo.setKeyPassword("otherkey");
-        keystoreInfo.setKeyAlias("other");
-        KeystoreInfo truststoreInfo = new KeystoreInfo();
-        truststoreInfo.setFilePath("./config/trust-store.jks");
-        truststoreInfo.setFilePassword("changeit");
+        AtomicInteger remaining = new AtomicInteger(transfers > 0 ? transfers : Integer.MAX_VALUE);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for(int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker(i);
+            executor.execute(() -> worker.run(remaining, deadline));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        if(sharedHttpClient != null) {
+            sharedHttpClient.close();
+        }
+
+        report(elapsed);
+        return completed.get() > 0;
+    }
+
+    /**
+     * One cdkey sending transfers back to back
+     */
+    private class Worker {
+        private final String cdkey;
+        private final String characterName;
+        private final Random random = new Random();
+
+        private PeerFTPSClient session = null;
+
+        Worker(int index) {
+            cdkey = String.format("%s%04d", cdkeyPrefix, index);
+            characterName = "Send Client "+index;
+        }
+
+        void run(AtomicInteger remaining, long deadline) {
+            CloseableHttpClient httpClient = sharedHttpClient;
+            try {
+                while(System.nanoTime() < deadline && remaining.getAndDecrement() > 0) {
+                    if(!reuse) {
+                        httpClient = makeHttpClient(1);
+                    }
+                    try {
+                        transfer(httpClient);
+                    } finally {
+                        if(!reuse) {
+                            closeSession();
+                            httpClient.close();
+                        }
+                    }
+                }
+            } catch(IOException ex) {
+                log.error("Worker for "+cdkey+" stopped",ex);
+            } finally {
+                closeSession();
+            }
+        }
+
+        private void transfer(CloseableHttpClient httpClient) {
+            long transferStart = System.nanoTime();
+
+            // fresh bytes every time, a bic the peer already has skips the upload
+            byte[] payload = new byte[sizeDistribution.next(random)];
+            random.nextBytes(payload);
+
+            SyncData syncData = new SyncData();
+            syncData.setCdkey(cdkey);
+            syncData.setLoginName(login);
+            syncData.setCharacterName(characterName);
+            syncData.setFileName(cdkey.toLowerCase());
+            syncData.setFileSize(payload.length);
+            syncData.setChecksum(checksumUtil.getChecksum(payload));
+
+            RequestData requestData = new RequestData();
+            try {
+                long phaseStart = System.nanoTime();
+                StartResults startResults = post(httpClient, "/v1/sync/start", syncData, StartResults.class);
+                startLatency.add(System.nanoTime() - phaseStart);
+                if(startResults.getStatusCode() > 299) {
+                    error("start "+startResults.getStatusCode()+" "+startResults.getErrorMessage());
+                    return;
+                }
+                requestData.setRequestId(startResults.getRequestId());
+
+                if(!startResults.isAlreadyPresent()) {
+                    try {
+                        upload(payload, startResults.getRequestId().toString());
+                    } catch(IOException ex) {
+                        closeSession();
+                        error("upload "+ex.getMessage());
+                        post(httpClient, "/v1/sync/cancel", requestData, RequestStatus.class);
+                        return;
+                    }
+                }
+
+                phaseStart = System.nanoTime();
+                RequestStatus verified = post(httpClient, "/v1/sync/verify", requestData, RequestStatus.class);
+                verifyLatency.add(System.nanoTime() - phaseStart);
+                if(verified.getStatusCode() > 299) {
+                    error("verify "+verified.getStatusCode()+" "+verified.getErrorMessage());
+                    return;
+                }
+            } catch(IOException ex) {
+                error("rest "+ex.getMessage());
+                return;
+            }
+
+            transferLatency.add(System.nanoTime() - transferStart);
+            bytesSent.addAndGet(payload.length);
+            completed.incrementAndGet();
+        }
+
+        private void upload(byte[] payload, String syncId) throws IOException {
+            if(session == null || !session.isConnected()) {
+                long connectStart = System.nanoTime();
+                session = openSession();
+                connectLatency.add(System.nanoTime() - connectStart);
+            }
+
+            long uploadStart = System.nanoTime();
+            OutputStream destinationOS = session.storeFileStream(syncId);
+            if(destinationOS == null) {
+                throw new IOException("STOR rejected: "+session.getReplyString().trim());
+            }
+            Deflater deflater = null;
+            try {
+                if(session.isDeflate()) {
+                    deflater = new Deflater();
+                    destinationOS = new DeflaterOutputStream(destinationOS, deflater, bufferSize);
+                }
+                for(int offset = 0; offset < payload.length; offset += bufferSize) {
+                    destinationOS.write(payload, offset, Math.min(bufferSize, payload.length - offset));
+                }
+                destinationOS.close();
+            } finally {
+                if(deflater != null) {
+                    deflater.end();
+                }
+            }
+            if(!session.completePendingCommand()) {
+                throw new IOException("upload did not finalize: "+session.getReplyString().trim());
+            }
+            uploadLatency.add(System.nanoTime() - uploadStart);
+        }
 
-        ftpsClient = makeFTPSClient(keystoreInfo, truststoreInfo);
+        private void closeSession() {
+            if(session == null) {
+                return;
+            }
+            try {
+                if(session.isConnected()) {
+                    session.logout();
+                    session.disconnect();
+                }
+            } catch(IOException ex) {
+                log.debug("Exception closing FTPS session: {}",ex.getMessage());
+            }
+            session = null;
+        }
+    }
 
+    private PeerFTPSClient openSession() throws IOException {
+        PeerFTPSClient ftpsClient = new PeerFTPSClient(sslContext);
+        ftpsClient.setReuseDataSession(reuse);
+        ftpsClient.connect(host, ftpsPort);
         try {
-            ftpsClient.connect("localhost",2220);
-            ftpsClient.login("admin","admin");
+            // dummy username and password, the certificate is the authenticator
+            if(!ftpsClient.login("plugh","cretin")) {
+                throw new IOException("login rejected: "+ftpsClient.getReplyString().trim());
+            }
             ftpsClient.execPBSZ(0);
             ftpsClient.execPROT("P");
             ftpsClient.enterLocalPassiveMode();
             ftpsClient.setFileTransferMode(FTP.STREAM_TRANSFER_MODE);
             ftpsClient.setFileType(FTP.BINARY_FILE_TYPE);
-    
-            File testFile = new File("test.txt");
-            InputStream testIS = new FileInputStream(testFile);
-            OutputStream testOS = ftpsClient.storeFileStream("target.txt");
-    
-            System.out.println("Uploading file");
-
-            int read = 0;
-            byte[] bytesIn = new byte[4096];
-    
-            while ((read = testIS.read(bytesIn)) != -1) {
-                System.out.println("chunk read");
-                testOS.write(bytesIn, 0, read);
-                System.out.println("chunk written");
-            }
-            System.out.println("Closing input");
-            testIS.close();
-            System.out.println("Input closed");
-            testOS.flush();
-            testOS.close();
-            System.out.println("Output closed");
-    
-            if( ftpsClient.completePendingCommand()) {
-                System.out.println("Upload success");
-            }
-
-            // if( ftpsClient.storeFile("target.txt", testIS) ) {
-            //     System.out.println("Upload success");
-            // }
-
-            System.out.println("Done");
+            if(compression) {
+                ftpsClient.setDeflate(FTPReply.isPositiveCompletion(ftpsClient.sendCommand("MODE", "Z")));
+            }
         } catch(IOException ex) {
-            System.out.println("Error: "+ex.getMessage());
-            ex.printStackTrace();
-        } finally {
-            System.out.println("Cleaning up");
-            try {
-                if (ftpsClient.isConnected()) {
-                    ftpsClient.logout();
-                    ftpsClient.disconnect();
-                }
-            } catch(IOException ex) {
-                ex.printStackTrace();
+            ftpsClient.disconnect();
+            throw ex;
+        }
+        return ftpsClient;
+    }
+
+    private <T> T post(CloseableHttpClient httpClient, String path, Object body, Class<T> type) throws IOException {
+        HttpPost post = new HttpPost("https://"+host+":"+restPort+path);
+        post.setEntity(new ByteArrayEntity(MAPPER.writeValueAsBytes(body), ContentType.APPLICATION_JSON));
+        return httpClient.execute(post, response -> {
+            byte[] content = EntityUtils.toByteArray(response.getEntity());
+            if(response.getCode() > 299) {
+                throw new IOException("HTTP "+response.getCode()+" from "+path);
             }
+            return MAPPER.readValue(content, type);
+        });
+    }
+
+    private CloseableHttpClient makeHttpClient(int maxConnections) {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+            .setSSLSocketFactory(SSLConnectionSocketFactoryBuilder.create().setSslContext(sslContext).build())
+            .setMaxConnPerRoute(maxConnections)
+            .setMaxConnTotal(maxConnections)
+            .build();
+        return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            // see SecureRestTemplateCustomizer
+            .disableConnectionState()
+            .build();
+    }
+
+    private SSLContext makeSSLContext() throws IOException, GeneralSecurityException {
+        KeyStore truststore = KeyStore.getInstance(new File(trustStore), trustStorePassword.toCharArray());
+        TrustManager trustManager = TrustManagerUtils.getDefaultTrustManager(truststore);
+
+        String keyStoreType = keyStore.endsWith(".p12") || keyStore.endsWith(".pfx") ? "PKCS12" : "JKS";
+        KeyManager keyManager = KeyManagerUtils.createClientKeyManager(keyStoreType,
+            new File(keyStore),
+            keyStorePassword,
+            keyAlias,
+            keyPassword);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(new KeyManager[] { keyManager }, new TrustManager[] { trustManager }, null);
+        return context;
+    }
+
+    private void error(String reason) {
+        errors.computeIfAbsent(reason, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        int errorCount = errors.values().stream().mapToInt(AtomicInteger::get).sum();
+        int attempted = completed.get() + errorCount;
+
+        System.out.println();
+        System.out.printf("Completed %d of %d in %.1fs, %.1f transfers/s, %.2f MB/s%n",
+            completed.get(), attempted, seconds, completed.get() / seconds, bytesSent.get() / seconds / (1024 * 1024));
+        System.out.printf("Errors    %d (%.2f%%)%n", errorCount, attempted == 0 ? 0.0 : errorCount * 100.0 / attempted);
+        errors.forEach((reason, count) -> System.out.printf("  %6d %s%n", count.get(), reason));
+
+        System.out.println();
+        System.out.printf("%-12s %8s %9s %9s %9s %9s%n", "Latency ms", "count", "p50", "p90", "p99", "max");
+        print("transfer", transferLatency);
+        print("start", startLatency);
+        print("connect", connectLatency);
+        print("upload", uploadLatency);
+        print("verify", verifyLatency);
+
+        System.out.println();
+        System.out.println("Transfer latency histogram");
+        long[] sorted = transferLatency.sorted();
+        int[] counts = new int[BUCKETS.length + 1];
+        for(long nanos : sorted) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while(bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+        }
+        int most = Arrays.stream(counts).max().orElse(0);
+        for(int i = 0; i < counts.length; i++) {
+            String label = i < BUCKETS.length ? "< "+BUCKETS[i] : ">= "+BUCKETS[BUCKETS.length - 1];
+            int bar = most == 0 ? 0 : (int) Math.round(counts[i] * 50.0 / most);
+            System.out.printf("%10s ms %7d %s%n", label, counts[i], "#".repeat(bar));
         }
     }
 
-    private FTPSClient makeFTPSClient(KeystoreInfo keyStoreInfo, KeystoreInfo trustStoreInfo) {
-        FTPSClient ftpsClient = new FTPSClient();
+    private static void print(String name, Latencies latencies) {
+        long[] sorted = latencies.sorted();
+        if(sorted.length == 0) {
+            System.out.printf("%-12s %8d%n", name, 0);
+            return;
+        }
+        System.out.printf("%-12s %8d %9.1f %9.1f %9.1f %9.1f%n", name, sorted.length,
+            millis(percentile(sorted, 50)), millis(percentile(sorted, 90)),
+            millis(percentile(sorted, 99)), millis(sorted[sorted.length - 1]));
+    }
 
-        try {
-            KeyStore truststore = KeyStore.getInstance(new File(trustStoreInfo.getFilePath()), trustStoreInfo.getFilePassword().toCharArray());
-            TrustManager trustManager = TrustManagerUtils.getDefaultTrustManager(truststore);
-            ftpsClient.setTrustManager(trustManager);
-        } catch (IOException | GeneralSecurityException e) {
-            log.error("Problem making truststore",e);
+    private static long percentile(long[] sorted, double percent) {
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Accepts a plain byte count or one ending in k or m
+     */
+    private static long parseSize(String value) {
+        String size = value.trim().toLowerCase();
+        if(size.endsWith("k")) {
+            return Long.parseLong(size.substring(0, size.length() - 1)) * 1024;
+        } else
+        if(size.endsWith("m")) {
+            return Long.parseLong(size.substring(0, size.length() - 1)) * 1024 * 1024;
         }
+        return Long.parseLong(size);
+    }
 
-        try {
-            KeyManager keyManager = KeyManagerUtils.createClientKeyManager("JKS",
-                new File(keyStoreInfo.getFilePath()),
-                keyStoreInfo.getFilePassword(),
-                keyStoreInfo.getKeyAlias(),
-                keyStoreInfo.getKeyPassword());
-            ftpsClient.setKeyManager(keyManager);
-        } catch (IOException | GeneralSecurityException e) {
-            log.error("Problem making keystore",e);
+    /**
+     * Weighted choice of bic sizes, eg. 16k:3,128k:6,1m:1
+     */
+    private static class SizeDistribution {
+        private final int[] sizes;
+        private final int[] cumulativeWeights;
+
+        SizeDistribution(String spec) {
+            String[] entries = spec.split(",");
+            sizes = new int[entries.length];
+            cumulativeWeights = new int[entries.length];
+            int total = 0;
+            for(int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].split(":");
+                sizes[i] = (int) parseSize(parts[0]);
+                total += parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+                cumulativeWeights[i] = total;
+            }
         }
 
-        return ftpsClient;
+        int next(Random random) {
+            int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for(int i = 0; i < sizes.length; i++) {
+                if(pick < cumulativeWeights[i]) {
+                    return sizes[i];
+                }
+            }
+            return sizes[sizes.length - 1];
+        }
     }
 
+    private static class Latencies {
+        private final List<Long> nanos = new ArrayList<>();
+
+        synchronized void add(long elapsed) {
+            nanos.add(elapsed);
+        }
+
+        synchronized long[] sorted() {
+            return nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+    }
 }
@@ -1,5 +1,8 @@
 package org.avlis.vaultsync.config;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import org.avlis.vaultsync.util.PathValidationUtils;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -8,6 +11,7 @@ import org.springframework.validation.Validator;
 import org.springframework.validation.annotation.Validated;
 
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotBlank;
 import lombok.Getter;
 import lombok.Setter;
@@ -21,6 +25,9 @@ public class CommonConfig implements Validator {
     // which senders we've blocked
     @Valid
     private String cnDenyList;
+    // milliseconds the deny list has to go unchanged before it's reloaded, 0 only reads it at startup
+    @Min(0)
+    private Integer cnDenyListReloadDelay = 1000;
     // where the received files wind up
     @Valid
     private String ftpHomeDirs;
@@ -29,6 +36,17 @@ public class CommonConfig implements Validator {
     private String vaultPath;
     @NotBlank
     private String publicAddress;
+    // optional, where in-flight transfers are recorded so they survive a restart
+    private String journalPath = null;
+    // the journal is rewritten with only the live transfers once it's this many bytes
+    @Min(4096)
+    private Long journalCompactSize = 16L * 1024 * 1024;
+    // TLS sessions kept for resumption by each SSLContext, 0 for no limit
+    @Min(0)
+    private Integer tlsSessionCacheSize = 1000;
+    // seconds a cached TLS session can be resumed, 0 for no limit
+    @Min(0)
+    private Integer tlsSessionTimeout = 3600;
     private boolean logAllExceptions = false;
 
     @Override
@@ -48,6 +66,13 @@ public class CommonConfig implements Validator {
 
         PathValidationUtils.checkDirectoryPath("ftpHomeDirs",commonConfig.getFtpHomeDirs(),errors);
         PathValidationUtils.checkDirectoryPath("vaultPath",commonConfig.getVaultPath(),errors);
+
+        // May be blank, the file is created if needed
+        String journalPath = commonConfig.getJournalPath();
+        if(journalPath != null && !journalPath.isBlank()) {
+            Path journalDir = Paths.get(journalPath).toAbsolutePath().getParent();
+            PathValidationUtils.checkDirectoryPath("journalPath",journalDir.toString(),errors);
+        }
     }
 
 }
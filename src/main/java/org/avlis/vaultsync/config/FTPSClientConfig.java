@@ -3,6 +3,8 @@ package org.avlis.vaultsync.config;
 import lombok.*;
 
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -25,6 +27,24 @@ public class FTPSClientConfig implements Validator {
     private Integer minPoolSize;
     @NotNull
     private Integer maxPoolSize;
+    // seconds before sessions above minPoolSize are closed
+    @Min(1)
+    private Integer idleTimeout = 120;
+    // seconds between idle session NOOP and eviction checks
+    @Min(1)
+    private Integer evictionInterval = 30;
+    // seconds of idle time after which a session is checked with NOOP before use
+    @Min(0)
+    private Integer validateAfterIdle = 5;
+    // deflate uploads (MODE Z) when the peer supports it
+    private boolean compression = true;
+    // 1 (fastest) to 9 (smallest)
+    @Min(1)
+    @Max(9)
+    private Integer compressionLevel = 6;
+    // opt in, data connections resume the control connection's TLS session
+    // through JDK internals, see PeerFTPSClient for the JDKs and flags
+    private boolean reuseDataSession = false;
     @Valid
     private String keyStore;
     @Valid
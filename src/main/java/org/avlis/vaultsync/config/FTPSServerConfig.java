@@ -31,6 +31,10 @@ public class FTPSServerConfig implements Validator {
     private Integer maxloginnumber = 0;
     @Min(0)
     private Integer maxloginperip = 0;
+    // logins open at once across all users, each sending peer keeps up to
+    // its ftps.client.maxPoolSize sessions logged in between transfers
+    @Min(1)
+    private Integer maxlogins = 100;
     @Min(0)
     private Integer uploadrate = 0;
     @Pattern(regexp = "^\\d{1,5}-\\d{1,5}$")
@@ -1,13 +1,29 @@
 package org.avlis.vaultsync.config;
 
+import org.avlis.vaultsync.util.PathValidationUtils;
+import org.avlis.vaultsync.util.SubnetMatcher;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.stereotype.Component;
+import org.springframework.validation.Errors;
+import org.springframework.validation.Validator;
 import org.springframework.validation.annotation.Validated;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.stream.Collectors;
 
-import jakarta.validation.constraints.NotNull;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validation;
+import jakarta.validation.ValidatorFactory;
+import jakarta.validation.constraints.Min;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -16,21 +32,82 @@ import lombok.extern.slf4j.Slf4j;
 @Component
 @Validated
 @ConfigurationProperties
-public class PeerConfig {
-    @NotNull
-    private @Setter @Getter Map<String,PeerInfo> peers;
+public class PeerConfig implements Validator, InitializingBean {
 
-    private Set<String> knownPeerNames = null;
+    // optional, a yml file with the peers map.  Used instead of peers and
+    // reloaded when it changes or through /v1/admin/peers/reload
+    private @Setter @Getter String peersFile = null;
+    // milliseconds peersFile has to go unchanged before it's reloaded, 0 only reloads through the admin endpoint
+    @Min(0)
+    private @Setter @Getter Integer peersFileReloadDelay = 1000;
 
-    public boolean isKnownPeer(String username) {
-        if(knownPeerNames == null) {
-            buildKnownPeers();
+    // receiver.subnet as set in peersFile when it was first read, null if it isn't
+    private @Getter String peersFileSubnet = null;
+
+    // the peers and the names they're known by, replaced together
+    private volatile Peers current = new Peers(null);
+
+    private static class Peers {
+        final Map<String,PeerInfo> peers;
+        final Set<String> knownPeerNames;
+
+        Peers(Map<String,PeerInfo> peers) {
+            this.peers = peers == null ? null : Collections.unmodifiableMap(new LinkedHashMap<>(peers));
+            this.knownPeerNames = peers == null ? Set.of() : buildKnownPeers(peers);
+        }
+    }
+
+    /**
+     * What peersFile holds
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class PeersFile {
+        private final Map<String,PeerInfo> peers;
+        // receiver.subnet, null when the file doesn't set it
+        private final String subnet;
+    }
+
+    /**
+     * What a reload changed
+     */
+    @Getter
+    public static class Changes {
+        // by peer name, changed and removed hold the old instances
+        private final Map<String,PeerInfo> added = new LinkedHashMap<>();
+        private final Map<String,PeerInfo> changed = new LinkedHashMap<>();
+        private final Map<String,PeerInfo> removed = new LinkedHashMap<>();
+        private int unchanged = 0;
+
+        /**
+         * The instances that were dropped, changed peers get new ones
+         */
+        public List<PeerInfo> getRetired() {
+            List<PeerInfo> retired = new ArrayList<>(removed.values());
+            retired.addAll(changed.values());
+            return retired;
+        }
+
+        @Override
+        public String toString() {
+            return added.size()+" added, "+changed.size()+" changed, "+removed.size()+" removed, "+unchanged+" unchanged";
         }
-        return knownPeerNames.contains(username);
     }
 
-    private void buildKnownPeers() {
-        knownPeerNames = peers.values().stream()
+    public Map<String,PeerInfo> getPeers() {
+        return current.peers;
+    }
+
+    public void setPeers(Map<String,PeerInfo> peers) {
+        current = new Peers(peers);
+    }
+
+    public boolean isKnownPeer(String username) {
+        return current.knownPeerNames.contains(username);
+    }
+
+    private static Set<String> buildKnownPeers(Map<String,PeerInfo> peers) {
+        return peers.values().stream()
             // only care about enabled peers
             .filter(PeerInfo::getEnabled)
             // extract the host and primary name
@@ -46,7 +123,83 @@ public class PeerConfig {
             // collapse the stream of lists of strings to a stream of strings
             .flatMap(Collection::stream)
             // turn it into a Set
-            .collect(Collectors.toSet());
+            .collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Swaps in a new set of peers.  Peers whose settings didn't change keep
+     * their PeerInfo instance, and with it their pooled sessions and breaker.
+     */
+    public synchronized Changes replacePeers(Map<String,PeerInfo> loaded) {
+        Map<String,PeerInfo> previous = current.peers == null ? Map.of() : current.peers;
+        Map<String,PeerInfo> next = new LinkedHashMap<>();
+        Changes changes = new Changes();
+
+        for(Map.Entry<String,PeerInfo> entry : loaded.entrySet()) {
+            String name = entry.getKey();
+            PeerInfo old = previous.get(name);
+            if(old == null) {
+                next.put(name, entry.getValue());
+                changes.added.put(name, entry.getValue());
+            } else
+            if(old.sameAs(entry.getValue())) {
+                next.put(name, old);
+                changes.unchanged++;
+            } else {
+                next.put(name, entry.getValue());
+                changes.changed.put(name, old);
+            }
+        }
+        for(Map.Entry<String,PeerInfo> entry : previous.entrySet()) {
+            if(!loaded.containsKey(entry.getKey())) {
+                changes.removed.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        current = new Peers(next);
+        return changes;
+    }
+
+    /**
+     * Reads and validates the peers, and receiver.subnet if it's there, in peersFile
+     * @throws IllegalArgumentException when a peer is missing a setting or the subnet is invalid
+     */
+    public PeersFile readPeersFile() throws IOException {
+        List<PropertySource<?>> sources = new YamlPropertySourceLoader().load(peersFile, new FileSystemResource(peersFile));
+        Binder binder = new Binder(ConfigurationPropertySources.from(sources));
+        Map<String,PeerInfo> loaded = binder
+            .bind("peers", Bindable.mapOf(String.class, PeerInfo.class))
+            .orElseThrow(() -> new IllegalArgumentException("No peers in "+peersFile));
+        String subnet = binder.bind("receiver.subnet", String.class).orElse(null);
+        if(subnet != null) {
+            try {
+                SubnetMatcher.compile(subnet);
+            } catch(IllegalArgumentException ex) {
+                throw new IllegalArgumentException("receiver.subnet "+ex.getMessage(), ex);
+            }
+        }
+
+        try(ValidatorFactory factory = Validation.buildDefaultValidatorFactory()) {
+            jakarta.validation.Validator validator = factory.getValidator();
+            for(Map.Entry<String,PeerInfo> entry : loaded.entrySet()) {
+                Set<ConstraintViolation<PeerInfo>> violations = validator.validate(entry.getValue());
+                if(!violations.isEmpty()) {
+                    ConstraintViolation<PeerInfo> violation = violations.iterator().next();
+                    throw new IllegalArgumentException("peers."+entry.getKey()+"."+violation.getPropertyPath()+" "+violation.getMessage());
+                }
+            }
+        }
+        return new PeersFile(loaded, subnet);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if(peersFile != null) {
+            PeersFile file = readPeersFile();
+            setPeers(file.getPeers());
+            peersFileSubnet = file.getSubnet();
+            log.info("Read {} peers from {}",current.peers.size(),peersFile);
+        }
     }
 
     /**
@@ -55,4 +208,21 @@ public class PeerConfig {
     public void setKnownPeerNames(Set<String> knownPeerNames) {
         log.error("knownPeerNames is not a valid configuration property");
     }
+
+    @Override
+    public boolean supports(Class<?> clazz) {
+        return PeerConfig.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public void validate(Object target, Errors errors) {
+        PeerConfig peerConfig = (PeerConfig) target;
+
+        if(peerConfig.getPeersFile() != null) {
+            PathValidationUtils.checkFilePath("peersFile",peerConfig.getPeersFile(),errors);
+        } else
+        if(peerConfig.getPeers() == null) {
+            errors.rejectValue("peers","field.name.blank","Must be set unless peersFile is");
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package org.avlis.vaultsync.config;
 
+import java.util.Objects;
+
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 
@@ -21,4 +23,20 @@ public class PeerInfo {
     Integer ftpsPort;
     @NotNull
     Boolean enabled;
+    // optional, concurrent transfers to this peer.  sender.maxInFlightPerPeer when unset
+    Integer maxInFlight = null;
+
+    /**
+     * Same settings.  Not equals(), PeerInfo instances are the keys of the
+     * per peer pools and breakers.
+     */
+    public boolean sameAs(PeerInfo other) {
+        return other != null
+            && Objects.equals(host, other.host)
+            && Objects.equals(primaryName, other.primaryName)
+            && Objects.equals(restPort, other.restPort)
+            && Objects.equals(ftpsPort, other.ftpsPort)
+            && Objects.equals(enabled, other.enabled)
+            && Objects.equals(maxInFlight, other.maxInFlight);
+    }
 }
@@ -6,6 +6,7 @@ import jakarta.validation.Valid;
 import jakarta.validation.constraints.*;
 import lombok.*;
 
+import org.avlis.vaultsync.util.SubnetMatcher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -28,6 +29,20 @@ public class ReceiverConfig implements Validator {
     private Boolean vaultByCdkey = false;
     // queries (eg. blocked, banned, jailed, wrong world, etc.)
     private List<ValidationQuery> validationQueries = null;
+    // most validation query results kept at once, see ValidationQuery.cacheTtl
+    @Min(1)
+    private Integer validationCacheSize = 10000;
+    // run the validation queries as one UNION ALL statement instead of one at a time
+    private boolean batchValidationQueries = true;
+    // live | snapshot, see ValidationQuery.snapshotQuery
+    @Pattern(regexp = "live|snapshot")
+    private String validationMode = "live";
+    // seconds between snapshot reloads
+    @Min(1)
+    private Integer snapshotRefresh = 60;
+    // seconds a snapshot is trusted before the rule falls back to live SQL
+    @Min(1)
+    private Integer snapshotMaxAge = 300;
     @Valid
     private String keyStore;
     @Valid
@@ -38,10 +53,23 @@ public class ReceiverConfig implements Validator {
     private Integer serverPort;
     @Valid
     private String subnet = "::1,127.0.0.1,172.16.0.0/12,192.168.0.0/16";
+    // subnet compiled for the per request check, swapped when subnet is set
+    @Setter(AccessLevel.NONE)
+    private volatile SubnetMatcher subnetMatcher = SubnetMatcher.compile(subnet);
     @Min(0)
     private Integer syncTimeout = 600;
     private boolean logExceptions = false;
 
+    public void setSubnet(String subnet) {
+        this.subnet = subnet;
+        try {
+            subnetMatcher = subnet == null ? null : SubnetMatcher.compile(subnet);
+        } catch(IllegalArgumentException ex) {
+            // reported by validate, nothing matches until then
+            subnetMatcher = null;
+        }
+    }
+
     @Override
     public boolean supports(Class<?> clazz) {
         return ReceiverConfig.class.isAssignableFrom(clazz);
@@ -54,6 +82,12 @@ public class ReceiverConfig implements Validator {
         // disabled | comma separated list of subnet masks
         if(receiverConfig.getSubnet() == null) {
             errors.rejectValue("subnet", "must.not.be.blank", "subnet is required");
+        } else {
+            try {
+                SubnetMatcher.compile(receiverConfig.getSubnet());
+            } catch(IllegalArgumentException ex) {
+                errors.rejectValue("subnet", "invalid.subnet", ex.getMessage());
+            }
         }
         keystoreConfig.validateKeyStore("keystore", receiverConfig.getKeyStore(), "keyStore", errors);
         keystoreConfig.validateKeyStore("truststore", receiverConfig.getTrustStore(), "trustStore", errors);
@@ -0,0 +1,56 @@
+package org.avlis.vaultsync.config;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Min;
+
+import lombok.*;
+
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * How often and how patiently one phase of a transfer is retried after a
+ * failure that might be temporary (connection refused, timeout, 5xx).
+ *
+ * The wait before retry n is initialDelay * multiplier^(n-1), capped at
+ * maxDelay, with a random half of it taken off so transfers that failed
+ * together don't all come back at the same moment.
+ */
+@Setter
+@Getter
+@Validated
+public class RetryPolicy {
+    // tries in total, 1 means don't retry
+    @Min(1)
+    private Integer attempts = 1;
+    // milliseconds
+    @Min(0)
+    private Long initialDelay = 500L;
+    // milliseconds
+    @Min(0)
+    private Long maxDelay = 5000L;
+    @DecimalMin("1.0")
+    private Double multiplier = 2.0;
+
+    public RetryPolicy() {
+    }
+
+    public RetryPolicy(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Milliseconds to wait before the given retry
+     * @param retry 1 for the first retry
+     */
+    public long backoffMillis(int retry) {
+        double delay = initialDelay * Math.pow(multiplier, Math.max(0, retry - 1));
+        long capped = (long) Math.min(delay, maxDelay);
+        if(capped <= 1) {
+            return capped;
+        }
+        long half = capped / 2;
+        return half + ThreadLocalRandom.current().nextLong(capped - half + 1);
+    }
+}
@@ -1,10 +1,12 @@
 package org.avlis.vaultsync.config;
 
 import lombok.*;
+import lombok.extern.slf4j.Slf4j;
 
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Pattern;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -13,6 +15,7 @@ import org.springframework.validation.Errors;
 import org.springframework.validation.Validator;
 import org.springframework.validation.annotation.Validated;
 
+@Slf4j
 @Setter
 @Getter
 @Component
@@ -24,6 +27,18 @@ public class SenderConfig implements Validator {
 
     @Min(1)
     private Integer maxInFlight = 10;
+    // transfers waiting for a free slot before new requests are turned away
+    @Min(0)
+    private Integer maxQueued = 100;
+    // transfers allowed in flight to any single peer, below maxInFlight so
+    // one slow peer can't hold every slot
+    @Min(1)
+    private Integer maxInFlightPerPeer = 4;
+    // 'pool' runs transfers on maxInFlight platform threads
+    // 'virtual' gives each transfer its own (virtual when available) thread
+    // and bounds concurrency with maxInFlight and maxInFlightPerPeer
+    @Pattern(regexp = "pool|virtual", flags = Pattern.Flag.CASE_INSENSITIVE)
+    private String executionMode = "pool";
     @Valid
     private String keyStore;
     @Valid
@@ -36,8 +51,38 @@ public class SenderConfig implements Validator {
     private Long connectTimeout = 60L;
     @Min(0)
     private Long connectionRequestTimeout = 60L;
+    // seconds an idle peer REST connection is kept open for reuse
+    @Min(1)
+    private Long connectionIdleTimeout = 30L;
+    // retries for each phase of a transfer
+    @Valid
+    private Retries retry = new Retries();
+    // failed transfers in a row before a peer is considered down
+    @Min(1)
+    private Integer breakerFailures = 5;
+    // seconds a down peer is skipped before one transfer is let through to test it
+    @Min(1)
+    private Integer breakerOpenTime = 30;
+    // seconds between peer health probes, 0 turns probing off.  Keep it under
+    // connectionIdleTimeout so the probe also keeps the connections warm
+    @Min(0)
+    private Integer probeInterval = 20;
     private boolean logExceptions = false;
 
+    @Setter
+    @Getter
+    public static class Retries {
+        // POST /v1/sync/start
+        @Valid
+        private RetryPolicy start = new RetryPolicy(2);
+        // the FTPS upload, retries resume from the peer's copy
+        @Valid
+        private RetryPolicy upload = new RetryPolicy(3);
+        // POST /v1/sync/verify
+        @Valid
+        private RetryPolicy verify = new RetryPolicy(3);
+    }
+
     @Override
     public boolean supports(Class<?> clazz) {
         return SenderConfig.class.isAssignableFrom(clazz);
@@ -49,5 +94,12 @@ public class SenderConfig implements Validator {
 
         keystoreConfig.validateKeyStore("keystore", senderConfig.getKeyStore(), "keyStore", errors);
         keystoreConfig.validateKeyStore("truststore", senderConfig.getTrustStore(), "trustStore", errors);
+
+        Integer maxInFlight = senderConfig.getMaxInFlight();
+        Integer perPeer = senderConfig.getMaxInFlightPerPeer();
+        if(maxInFlight != null && perPeer != null && perPeer >= maxInFlight) {
+            // not an error, a lone peer may use every slot, but nothing stops one slow peer starving the rest
+            log.warn("sender.maxInFlightPerPeer ({}) is not below sender.maxInFlight ({}), one slow peer can hold every transfer slot",perPeer,maxInFlight);
+        }
     }
 }
@@ -1,5 +1,6 @@
 package org.avlis.vaultsync.config;
 
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.Pattern;
 
 import lombok.*;
@@ -38,6 +39,20 @@ import org.springframework.validation.annotation.Validated;
  * WHERE    status = "jailed" AND
  *          now() < releaseDate AND
  *          ( player = :login OR cdkey = :cdkey )
+ *
+ * cacheTtl keeps the query's count for that many seconds, per combination
+ * of the parameters the query uses.  0 runs the query on every request.
+ *
+ * snapshotQuery is used when receiver.validationMode is snapshot.  It's a
+ * complete SELECT whose columns are named after the parameters above and it's
+ * loaded into memory every receiver.snapshotRefresh seconds.  The rule
+ * matches when any of the request's values is in the column of the same
+ * name (case insensitive).  A snapshot with none of those columns matches
+ * every request as long as it returned a row.
+ *
+ * JAILED (snapshot)
+ * SELECT player AS login, cdkey FROM player
+ * WHERE    status = "jailed" AND now() < releaseDate
  */
 
 @Setter
@@ -48,4 +63,9 @@ public class ValidationQuery {
     String query;
     Integer rejectionCode;
     String rejectionReason;
+    @Min(0)
+    Integer cacheTtl = 0;
+    // optional
+    @Pattern(regexp = "^[Ss][Ee][Ll][Ee][Cc][Tt] .*", message = "Snapshot query must be a SELECT")
+    String snapshotQuery = null;
 }
@@ -0,0 +1,99 @@
+package org.avlis.vaultsync.controllers;
+
+import java.util.*;
+
+import org.avlis.vaultsync.models.*;
+import org.avlis.vaultsync.security.SecureRestTemplateCustomizer;
+import org.avlis.vaultsync.security.SslContextRegistry;
+import org.avlis.vaultsync.services.PeerConfigReloader;
+import org.avlis.vaultsync.services.SendClientManager;
+import org.avlis.vaultsync.services.ValidationService;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Operational endpoints.  Restricted to the same subnet as /v1/transfer/**
+ */
+@RestController
+public class AdminController {
+
+    private final SecureRestTemplateCustomizer restClient;
+    private final SendClientManager sendClientManager;
+    private final ValidationService validationService;
+    private final SslContextRegistry sslContextRegistry;
+    private final PeerConfigReloader peerConfigReloader;
+
+    @Autowired
+    public AdminController( SecureRestTemplateCustomizer restClient,
+                            SendClientManager sendClientManager,
+                            ValidationService validationService,
+                            SslContextRegistry sslContextRegistry,
+                            PeerConfigReloader peerConfigReloader)
+    {
+        this.restClient = restClient;
+        this.sendClientManager = sendClientManager;
+        this.validationService = validationService;
+        this.sslContextRegistry = sslContextRegistry;
+        this.peerConfigReloader = peerConfigReloader;
+    }
+
+    @GetMapping(value = "/v1/admin/pool", produces = "application/json")
+    public List<PoolStatus> pool() {
+        List<PoolStatus> results = new ArrayList<>();
+        results.add(restClient.getPoolStatus());
+        results.addAll(restClient.getPeerPoolStatus());
+        return results;
+    }
+
+    @GetMapping(value = "/v1/admin/tls", produces = "application/json")
+    public TlsStats tls() {
+        return sslContextRegistry.getStats();
+    }
+
+    @GetMapping(value = "/v1/admin/queues", produces = "application/json")
+    public List<QueueStatus> queues() {
+        return sendClientManager.getQueueStatus();
+    }
+
+    @GetMapping(value = "/v1/admin/validation-cache", produces = "application/json")
+    public ValidationCacheStatus validationCache() {
+        return validationService.getCacheStatus();
+    }
+
+    /**
+     * Drops cached validation results, eg. right after jailing a player.
+     * With value only the results looked up with that world, cdkey, login
+     * or character name are dropped.
+     */
+    @PostMapping(value = "/v1/admin/validation-cache/invalidate", produces = "application/json")
+    public RequestStatus invalidateValidationCache(@RequestParam(required = false) String value) {
+        int dropped = validationService.invalidate(value);
+        return new RequestStatus(200, dropped+" cached results dropped");
+    }
+
+    @GetMapping(value = "/v1/admin/validation-snapshot", produces = "application/json")
+    public List<ValidationSnapshotStatus> validationSnapshot() {
+        return validationService.getSnapshotStatus();
+    }
+
+    /**
+     * Reloads the validation snapshots now instead of waiting for the next refresh
+     */
+    @PostMapping(value = "/v1/admin/validation-snapshot/refresh", produces = "application/json")
+    public List<ValidationSnapshotStatus> refreshValidationSnapshot() {
+        validationService.refreshSnapshots();
+        return validationService.getSnapshotStatus();
+    }
+
+    /**
+     * Re-reads peersFile now instead of waiting for the file watcher
+     */
+    @PostMapping(value = "/v1/admin/peers/reload", produces = "application/json")
+    public RequestStatus reloadPeers() {
+        return peerConfigReloader.reload();
+    }
+}
@@ -5,8 +5,10 @@ import jakarta.servlet.http.HttpServletResponse;
 
 import org.avlis.vaultsync.models.*;
 import org.avlis.vaultsync.services.SyncService;
+import org.avlis.vaultsync.services.TransferMetrics;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
@@ -15,25 +17,40 @@ import org.springframework.web.bind.annotation.RestController;
 public class ReceiverController {
 
     private final SyncService syncService;
+    private final TransferMetrics metrics;
 
     @Autowired
-    public ReceiverController(SyncService syncService) {
+    public ReceiverController(SyncService syncService, TransferMetrics metrics) {
         this.syncService = syncService;
+        this.metrics = metrics;
     }
 
     @PostMapping(value = "/v1/sync/start", consumes = "application/json", produces = "application/json")
     public StartResults start(@RequestBody SyncData data, HttpServletRequest request, HttpServletResponse response) {
-        return this.syncService.addRequest(data, request.getUserPrincipal().getName());
+        StartResults results = this.syncService.addRequest(data, request.getUserPrincipal().getName());
+        metrics.syncResult("start", results.getStatusCode());
+        return results;
     }
 
     @PostMapping(value = "/v1/sync/verify", consumes = "application/json", produces = "application/json")
     public RequestStatus verify(@RequestBody RequestData request, HttpServletResponse response) {
-
-        return this.syncService.verifyTransfer(request.getRequestId());
+        RequestStatus status = this.syncService.verifyTransfer(request.getRequestId());
+        metrics.syncResult("verify", status.getStatusCode());
+        return status;
     }
 
     @PostMapping(value = "/v1/sync/cancel", consumes = "application/json", produces = "application/json")
     public RequestStatus cancel(@RequestBody RequestData request, HttpServletResponse response) {
-        return this.syncService.cancelTransfer(request.getRequestId());
+        RequestStatus status = this.syncService.cancelTransfer(request.getRequestId());
+        metrics.syncResult("cancel", status.getStatusCode());
+        return status;
+    }
+
+    /**
+     * Lets a peer check that we're up and measure the round trip
+     */
+    @GetMapping(value = "/v1/sync/ping", produces = "application/json")
+    public RequestStatus ping() {
+        return new RequestStatus(200, "");
     }
 }
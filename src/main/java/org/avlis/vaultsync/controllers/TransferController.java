@@ -1,12 +1,16 @@
 package org.avlis.vaultsync.controllers;
 
+import java.util.List;
+
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 
 import org.avlis.vaultsync.models.*;
+import org.avlis.vaultsync.services.PeerHealthProber;
 import org.avlis.vaultsync.services.SenderService;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
@@ -16,15 +20,21 @@ import org.springframework.web.bind.annotation.RestController;
 public class TransferController {
 
     private final SenderService senderService;
+    private final PeerHealthProber peerHealthProber;
 
     @Autowired
-    public TransferController(SenderService syncService) {
+    public TransferController(SenderService syncService, PeerHealthProber peerHealthProber) {
         this.senderService = syncService;
+        this.peerHealthProber = peerHealthProber;
     }
 
     @PostMapping(value = "/v1/transfer/start", consumes = "application/json", produces = "application/json")
     public RequestStatus start(@RequestBody TransferData data, HttpServletResponse response) {
-        return this.senderService.addRequest(data);
+        RequestStatus status = this.senderService.addRequest(data);
+        if(status.getRetryAfter() != null) {
+            response.setHeader("Retry-After", status.getRetryAfter().toString());
+        }
+        return status;
     }
 
     @PostMapping(value = "/v1/transfer/status", consumes = "application/json", produces = "application/json")
@@ -39,4 +49,14 @@ public class TransferController {
         String charId = request.getCdkey()+":"+request.getCharacterName();
         return this.senderService.abortTransfer(charId,request.getDestination());
     }
+
+    @GetMapping(value = "/v1/transfer/peers", produces = "application/json")
+    public List<PeerState> peers() {
+        return this.senderService.getPeerStates();
+    }
+
+    @GetMapping(value = "/v1/transfer/peers/health", produces = "application/json")
+    public List<PeerHealth> peerHealth() {
+        return this.peerHealthProber.getHealth();
+    }
 }
@@ -0,0 +1,18 @@
+package org.avlis.vaultsync.models;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PeerHealth {
+    private String destination;
+    private boolean up;
+    private long restRttMillis; // GET /v1/sync/ping over a pooled connection, -1 if it failed
+    private long handshakeMillis; // connect and TLS handshake on a new socket, -1 if it failed
+    private long ftpsRttMillis; // NOOP on a pooled FTPS session, -1 if it failed or none was idle
+    private long checkedAt; // epoch millis
+    private String error; // why the peer is down, null if it's up
+}
@@ -0,0 +1,16 @@
+package org.avlis.vaultsync.models;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PeerState {
+    private String destination;
+    private boolean enabled;
+    private String state; // CLOSED (up), OPEN (down), HALF_OPEN (being tested)
+    private int failures; // failed transfers in a row
+    private int retryAfter; // seconds until transfers are accepted again, 0 if they are now
+}
@@ -0,0 +1,14 @@
+package org.avlis.vaultsync.models;
+
+import lombok.Data;
+import lombok.AllArgsConstructor;
+
+@Data
+@AllArgsConstructor
+public class PoolStatus {
+    private String name;
+    private int leased;
+    private int available;
+    private int pending;
+    private int max;
+}
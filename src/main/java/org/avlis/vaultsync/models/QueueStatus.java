@@ -0,0 +1,13 @@
+package org.avlis.vaultsync.models;
+
+import lombok.Data;
+import lombok.AllArgsConstructor;
+
+@Data
+@AllArgsConstructor
+public class QueueStatus {
+    private String destination;
+    private int queued;
+    private int inFlight;
+    private int maxInFlight;
+}
@@ -1,11 +1,18 @@
 package org.avlis.vaultsync.models;
 
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
 public class RequestStatus {
     private int statusCode;
     private String errorMessage;
+    private Integer retryAfter; // seconds, set when the request was turned away for being busy
+
+    public RequestStatus(int statusCode, String errorMessage) {
+        this(statusCode, errorMessage, null);
+    }
 }
@@ -4,11 +4,19 @@ import java.util.UUID;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
 public class StartResults {
     private UUID requestId;
     private int statusCode;
     private String errorMessage;
+    // the destination already holds a bic with the same checksum, skip the upload
+    private boolean alreadyPresent;
+
+    public StartResults(UUID requestId, int statusCode, String errorMessage) {
+        this(requestId, statusCode, errorMessage, false);
+    }
 }
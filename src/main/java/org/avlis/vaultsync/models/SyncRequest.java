@@ -10,6 +10,7 @@ public class SyncRequest extends SyncData {
     private String sender;
     private long receivedMillis; // currenttimemilis
     private int statusCode;
+    private boolean alreadyPresent; // vault already holds these bytes, nothing to upload
 
     public SyncRequest(SyncData syncData, String sender) {
         super();
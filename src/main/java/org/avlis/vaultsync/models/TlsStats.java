@@ -0,0 +1,16 @@
+package org.avlis.vaultsync.models;
+
+import lombok.Data;
+import lombok.AllArgsConstructor;
+
+@Data
+@AllArgsConstructor
+public class TlsStats {
+    private long handshakes;
+    private long resumedHandshakes;
+    // resumed / total, 0 before the first handshake
+    private double resumptionRate;
+    private int contexts;
+    private int sessionCacheSize;
+    private int sessionTimeout;
+}
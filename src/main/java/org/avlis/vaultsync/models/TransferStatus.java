@@ -1,12 +1,20 @@
 package org.avlis.vaultsync.models;
 
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
 public class TransferStatus {
     private int progress; // 0-1000
     private int statusCode;
     private String errorMessage;
+    private int queuePosition; // 1 based, 0 when not waiting to start
+    private long estimatedStart; // epoch millis, 0 when not waiting to start
+
+    public TransferStatus(int progress, int statusCode, String errorMessage) {
+        this(progress, statusCode, errorMessage, 0, 0);
+    }
 }
@@ -0,0 +1,13 @@
+package org.avlis.vaultsync.models;
+
+import lombok.Data;
+import lombok.AllArgsConstructor;
+
+@Data
+@AllArgsConstructor
+public class ValidationCacheStatus {
+    private int size;
+    private int maxSize;
+    private long hits;
+    private long misses;
+}
@@ -0,0 +1,15 @@
+package org.avlis.vaultsync.models;
+
+import lombok.Data;
+import lombok.AllArgsConstructor;
+
+@Data
+@AllArgsConstructor
+public class ValidationSnapshotStatus {
+    private int rule;
+    private String rejectionReason;
+    private int rows;
+    private long loadedAt;
+    // false when the rule is being checked with live SQL
+    private boolean fresh;
+}
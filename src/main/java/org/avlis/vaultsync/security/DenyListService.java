@@ -2,50 +2,110 @@ package org.avlis.vaultsync.security;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import org.avlis.vaultsync.config.CommonConfig;
+import org.avlis.vaultsync.util.FileWatcher;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Senders, by certificate common name, turned away by the REST endpoints
+ * and the FTPS server.  The file is watched and re-read when it changes so
+ * a sender can be blocked without a restart.  Lookups read whichever
+ * immutable set is current without locking, a reload swaps in a new one.
+ */
 @Slf4j
 @Component
-public class DenyListService {
+public class DenyListService implements DisposableBean {
 
-    private Set<String> cnDenyList;
+    // entries in the current deny list
+    public static final String SIZE = "vaultsync.denylist.size";
+    // reloads after the file changed, tagged result success or failure
+    public static final String RELOADS = "vaultsync.denylist.reloads";
+
+    private final AtomicReference<Set<String>> cnDenyList = new AtomicReference<>(Set.of());
+
+    private Path path = null;
+    private FileWatcher watcher = null;
+
+    private Counter reloaded;
+    private Counter reloadFailed;
 
     @Autowired
-    public DenyListService(CommonConfig commonConfig) {
-        cnDenyList = populateDenyListFromFile(commonConfig.getCnDenyList());
-        log.debug("CD deny list has {} entries",cnDenyList.size());
+    public DenyListService(CommonConfig commonConfig, MeterRegistry registry) {
+        String filename = commonConfig.getCnDenyList();
+        if(filename != null) {
+            path = Paths.get(filename).toAbsolutePath();
+            Set<String> entries = readDenyList(path);
+            if(entries != null) {
+                cnDenyList.set(entries);
+            }
+        }
+        log.debug("CD deny list has {} entries",cnDenyList.get().size());
+
+        Gauge.builder(SIZE, cnDenyList, list -> list.get().size())
+            .description("Senders in the deny list")
+            .register(registry);
+        reloaded = Counter.builder(RELOADS).tag("result", "success").register(registry);
+        reloadFailed = Counter.builder(RELOADS).tag("result", "failure").register(registry);
+
+        long reloadDelayMillis = commonConfig.getCnDenyListReloadDelay();
+        if(path != null && reloadDelayMillis > 0) {
+            try {
+                watcher = new FileWatcher(path, reloadDelayMillis, "deny-list-watcher", this::reload);
+            } catch(IOException ex) {
+                log.warn("Can't watch {} for changes, edits to the deny list need a restart",path,ex);
+            }
+        }
     }
 
     public boolean isCnBlocked(String name) {
-        return cnDenyList.contains(name);
+        return name != null && cnDenyList.get().contains(name);
     }
 
-    private Set<String> populateDenyListFromFile(String filename) {
-        if(filename != null) {
-            // one entry per line
-            Path path = Paths.get(filename);
-            BufferedReader reader;
-            try {
-                reader = Files.newBufferedReader(path);
-                return reader.lines()
-                    .map(DenyListService::cleanEntry)
-                    .filter(line -> !line.isBlank())
-                    .collect(Collectors.toSet());
-            } catch (IOException e) {
-                log.warn("IOException trying to read denylist from {}",filename,e);
-            }
+    /**
+     * Re-reads the file.  If it can't be read the current list stays in place.
+     */
+    public void reload() {
+        if(path == null) {
+            return;
+        }
+        Set<String> entries = readDenyList(path);
+        if(entries == null) {
+            reloadFailed.increment();
+            log.warn("Kept the current deny list of {} entries",cnDenyList.get().size());
+            return;
         }
+        Set<String> previous = cnDenyList.getAndSet(entries);
+        reloaded.increment();
+        log.info("Reloaded the deny list from {}, {} entries, was {}",path,entries.size(),previous.size());
+    }
 
-        return new HashSet<>();
+    /**
+     * @return the entries, null if the file couldn't be read
+     */
+    private static Set<String> readDenyList(Path path) {
+        // one entry per line
+        try(BufferedReader reader = Files.newBufferedReader(path)) {
+            return reader.lines()
+                .map(DenyListService::cleanEntry)
+                .filter(line -> !line.isBlank())
+                .collect(Collectors.toUnmodifiableSet());
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("IOException trying to read denylist from {}",path,e);
+            return null;
+        }
     }
 
     private static String cleanEntry(String line) {
@@ -57,4 +117,11 @@ public class DenyListService {
         }
         return line.trim();
     }
+
+    @Override
+    public void destroy() throws IOException {
+        if(watcher != null) {
+            watcher.close();
+        }
+    }
 }
@@ -1,22 +1,29 @@
 package org.avlis.vaultsync.security;
 
-import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 
+import org.apache.hc.client5.http.HttpRoute;
 import org.apache.hc.client5.http.config.ConnectionConfig;
 import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
-import org.apache.hc.client5.http.io.HttpClientConnectionManager;
 import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
-import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactoryBuilder;
-import org.apache.hc.core5.ssl.SSLContexts;
-import org.avlis.vaultsync.config.KeystoreInfo;
-import org.avlis.vaultsync.config.KeystoreConfig;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.avlis.vaultsync.config.PeerConfig;
 import org.avlis.vaultsync.config.SenderConfig;
+import org.avlis.vaultsync.models.PoolStatus;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.web.client.RestTemplateCustomizer;
 import org.springframework.http.client.ClientHttpRequestFactory;
@@ -27,74 +34,137 @@ import org.springframework.web.client.RestTemplate;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Builds the mTLS HTTP client used for peer REST calls exactly once.  Every
+ * RestTemplate built from the RestTemplateBuilder shares the same connection
+ * pool so connections (and their TLS handshakes) are reused between calls.
+ */
 @Slf4j
 @Component
-public class SecureRestTemplateCustomizer implements RestTemplateCustomizer {
+public class SecureRestTemplateCustomizer implements RestTemplateCustomizer, DisposableBean {
 
-    private KeystoreInfo keyStoreInfo;
-    private KeystoreInfo trustStoreInfo;
-    private String sslProtocol;
     private long connectTimeout;
     private long connectionRequestTimeout;
+    private long connectionIdleTimeout;
+    private int maxPerPeer;
+
+    private SSLContext sslContext;
+    private SslContextRegistry sslContextRegistry;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ClientHttpRequestFactory requestFactory;
 
     @Autowired
     public SecureRestTemplateCustomizer(
         SenderConfig senderConfig,
-        KeystoreConfig keystoreConfig)
+        SslContextRegistry sslContextRegistry,
+        PeerConfig peerConfig)
     {
-        keyStoreInfo = keystoreConfig.getKeystores().get(senderConfig.getKeyStore());
-        trustStoreInfo = keystoreConfig.getKeystores().get(senderConfig.getTrustStore());
-        sslProtocol = senderConfig.getSslProtocol();
+        this.sslContextRegistry = sslContextRegistry;
+        sslContext = sslContextRegistry.getContext(senderConfig.getKeyStore(), senderConfig.getTrustStore(), senderConfig.getSslProtocol());
         connectTimeout = senderConfig.getConnectTimeout();
         connectionRequestTimeout = senderConfig.getConnectionRequestTimeout();
-    }
+        connectionIdleTimeout = senderConfig.getConnectionIdleTimeout();
 
-    @Override
-    public void customize(RestTemplate restTemplate) {
-        final SSLContext sslContext;
-        try {
-            sslContext = SSLContexts.custom()
-                .loadKeyMaterial(new File(keyStoreInfo.getFilePath()),
-                    keyStoreInfo.getFilePassword().toCharArray(),
-                    keyStoreInfo.getKeyPassword().toCharArray())
-                .loadTrustMaterial(new File(trustStoreInfo.getFilePath()),
-                    trustStoreInfo.getFilePassword().toCharArray())
-                .setProtocol(sslProtocol)
-                .build();
-        } catch(Exception e) {
-            throw new IllegalStateException("Failed to setup client SSL context", e);
-        } finally {
-            // be paranoid and zero out the char[] array in properties.
-            // Except... the cert can and is encouraged to be shared with the FTPS Client
-            // maybe a postinit...
-        }
+        // every in-flight transfer may hold one connection to its peer
+        maxPerPeer = senderConfig.getMaxInFlight();
+        int peerCount = Math.max(1, peerConfig.getPeers().size());
+
+        connectionManager = makeConnectionManager(maxPerPeer, maxPerPeer * peerCount);
+        httpClient = makeHttpClient(connectionManager);
+        requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+
+        log.debug("Using SSL keystore {} and truststore {} for client requests",
+            senderConfig.getKeyStore(), senderConfig.getTrustStore());
+    }
 
+    private PoolingHttpClientConnectionManager makeConnectionManager(int maxPerPeer, int maxTotal) {
         ConnectionConfig cc = ConnectionConfig.custom()
             .setConnectTimeout(connectTimeout, TimeUnit.SECONDS)
+            // cheap staleness check before reusing a connection that sat idle
+            .setValidateAfterInactivity(2, TimeUnit.SECONDS)
             .build();
-        RequestConfig rc = RequestConfig.custom()
-            .setConnectionRequestTimeout(connectionRequestTimeout, TimeUnit.SECONDS)
-            .build();
-        final SSLConnectionSocketFactory sslSocketFactory = SSLConnectionSocketFactoryBuilder.create()
-            .setSslContext(sslContext)
-            .build();
-        final HttpClientConnectionManager cm = PoolingHttpClientConnectionManagerBuilder.create()
+        // the handshake is done by the time createLayeredSocket returns
+        final SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(sslContext) {
+            @Override
+            public Socket createLayeredSocket(Socket socket, String target, int port, Object attachment, HttpContext context) throws IOException {
+                long startedMillis = System.currentTimeMillis();
+                Socket layered = super.createLayeredSocket(socket, target, port, attachment, context);
+                sslContextRegistry.recordHandshake(layered, startedMillis);
+                return layered;
+            }
+        };
+        return PoolingHttpClientConnectionManagerBuilder.create()
             .setDefaultConnectionConfig(cc)
             .setSSLSocketFactory(sslSocketFactory)
+            .setMaxConnPerRoute(maxPerPeer)
+            .setMaxConnTotal(maxTotal)
+            .build();
+    }
+
+    private CloseableHttpClient makeHttpClient(PoolingHttpClientConnectionManager cm) {
+        RequestConfig rc = RequestConfig.custom()
+            .setConnectionRequestTimeout(connectionRequestTimeout, TimeUnit.SECONDS)
             .build();
-        final CloseableHttpClient httpClient = HttpClients.custom()
+        return HttpClients.custom()
             .setConnectionManager(cm)
             .setDefaultRequestConfig(rc)
             .disableRedirectHandling()
+            // Connections authenticated with our client cert are tagged with the
+            // cert's principal which keeps them from being leased again by a
+            // request without that state.  There's only one identity, so skip it.
+            .disableConnectionState()
             .evictExpiredConnections()
+            .evictIdleConnections(TimeValue.ofSeconds(connectionIdleTimeout))
             .build();
+    }
 
-        final ClientHttpRequestFactory requestFactory =
-            new HttpComponentsClientHttpRequestFactory(httpClient);
+    /**
+     * The client's mTLS context, for callers that need their own sockets to a peer
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
 
-        log.debug("Registered SSL keystore {} and truststore {} for client requests",
-            keyStoreInfo.getFilePath(), trustStoreInfo.getFilePath());
+    /**
+     * Resizes the pool after a reload changed how many peers there are.
+     * Connections to removed peers aren't leased again and close once idle.
+     */
+    public void setPeerCount(int peerCount) {
+        connectionManager.setMaxTotal(maxPerPeer * Math.max(1, peerCount));
+    }
 
+    @Override
+    public void customize(RestTemplate restTemplate) {
         restTemplate.setRequestFactory(requestFactory);
     }
+
+    /**
+     * Connection pool usage across all peers
+     */
+    public PoolStatus getPoolStatus() {
+        return makePoolStatus("all", connectionManager.getTotalStats());
+    }
+
+    /**
+     * Connection pool usage for each peer the client has talked to
+     */
+    public List<PoolStatus> getPeerPoolStatus() {
+        List<PoolStatus> results = new ArrayList<>();
+        for(HttpRoute route : connectionManager.getRoutes()) {
+            HttpHost target = route.getTargetHost();
+            results.add(makePoolStatus(target.getHostName()+":"+target.getPort(), connectionManager.getStats(route)));
+        }
+        return results;
+    }
+
+    private static PoolStatus makePoolStatus(String name, PoolStats stats) {
+        return new PoolStatus(name, stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax());
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        log.debug("Closing the peer REST connection pool");
+        httpClient.close(CloseMode.GRACEFUL);
+    }
 }
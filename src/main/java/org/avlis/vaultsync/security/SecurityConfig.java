@@ -1,10 +1,11 @@
 package org.avlis.vaultsync.security;
 
 import java.util.Objects;
-import java.util.stream.Stream;
+import java.util.function.Supplier;
 
 import org.avlis.vaultsync.config.PeerConfig;
 import org.avlis.vaultsync.config.ReceiverConfig;
+import org.avlis.vaultsync.util.SubnetMatcher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -19,9 +20,7 @@ import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.web.access.intercept.RequestAuthorizationContext;
-import org.springframework.security.web.util.matcher.IpAddressMatcher;
 
-import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -29,6 +28,9 @@ import lombok.extern.slf4j.Slf4j;
 @EnableWebSecurity
 public class SecurityConfig {
 
+    private static final AuthorizationDecision GRANTED = new AuthorizationDecision(true);
+    private static final AuthorizationDecision DENIED = new AuthorizationDecision(false);
+
     private DenyListService denyListService;
     private ReceiverConfig receiverConfig;
     private PeerConfig peerConfig;
@@ -45,11 +47,15 @@ public class SecurityConfig {
 
     @Bean
     SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
+        // reads receiver.subnet as it is now, so a reload applies to the next request
+        AuthorizationManager<RequestAuthorizationContext> inSubnet = fromSubnet(receiverConfig::getSubnetMatcher);
         http
             .requiresChannel(channel -> 
                 channel.anyRequest().requiresSecure())
             .authorizeHttpRequests()
-                .requestMatchers("/v1/transfer/**").access(hasIpAddress(receiverConfig.getSubnet()))
+                .requestMatchers("/v1/transfer/**").access(inSubnet)
+                .requestMatchers("/v1/admin/**").access(inSubnet)
+                .requestMatchers("/actuator/**").access(inSubnet)
                 .requestMatchers("/v1/sync/**").hasAuthority("ROLE_SYNC")
             .and()
                 .x509()
@@ -80,20 +86,16 @@ public class SecurityConfig {
         };
     }
 
-    private static AuthorizationManager<RequestAuthorizationContext> hasIpAddress(String ipAddress) {
-        if(ipAddress.equalsIgnoreCase("disabled")) {
-            return  (authentication, context) -> {
-                return new AuthorizationDecision(true);
-            };
-        }
-
+    // package-private for SubnetMatchBenchmark
+    static AuthorizationManager<RequestAuthorizationContext> fromSubnet(Supplier<SubnetMatcher> subnet) {
         return (authentication, context) -> {
-            HttpServletRequest request = context.getRequest();
-            boolean matched = Stream.of(ipAddress.split(",", -1))
-                .map(String::trim)
-                .anyMatch(mask -> new IpAddressMatcher(mask).matches(request));
-            log.debug("Does {} match subnet {}? {}",request.getRemoteAddr(),ipAddress,matched);
-            return new AuthorizationDecision(matched);
+            SubnetMatcher matcher = subnet.get();
+            String remoteAddr = context.getRequest().getRemoteAddr();
+            if(matcher != null && matcher.matches(remoteAddr)) {
+                return GRANTED;
+            }
+            log.debug("{} is outside subnet {}",remoteAddr,matcher);
+            return DENIED;
         };
     }
 
@@ -0,0 +1,161 @@
+package org.avlis.vaultsync.security;
+
+import java.io.File;
+import java.net.Socket;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.*;
+
+import org.avlis.vaultsync.config.CommonConfig;
+import org.avlis.vaultsync.config.KeystoreConfig;
+import org.avlis.vaultsync.config.KeystoreInfo;
+import org.avlis.vaultsync.models.TlsStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The one place keystores are read and SSLContexts are built.  The REST
+ * client, the FTPS client and the FTPS server ask for a context by keystore
+ * and truststore id and everyone asking for the same pair shares one
+ * context, and with it one TLS session cache, so reconnects can resume
+ * instead of doing a full handshake.
+ */
+@Slf4j
+@Component
+public class SslContextRegistry {
+
+    // what FTPSClient and FtpServer ask for when not told otherwise
+    public static final String DEFAULT_PROTOCOL = "TLS";
+
+    private KeystoreConfig keystoreConfig;
+    private int sessionCacheSize;
+    private int sessionTimeout;
+
+    private Map<String, KeyStore> keyStores = new ConcurrentHashMap<>();
+    private Map<String, SSLContext> contexts = new ConcurrentHashMap<>();
+
+    // handshakes the REST and FTPS clients report through recordHandshake()
+    private AtomicLong handshakes = new AtomicLong();
+    private AtomicLong resumed = new AtomicLong();
+
+    @Autowired
+    public SslContextRegistry(CommonConfig commonConfig, KeystoreConfig keystoreConfig) {
+        this.keystoreConfig = keystoreConfig;
+        this.sessionCacheSize = commonConfig.getTlsSessionCacheSize();
+        this.sessionTimeout = commonConfig.getTlsSessionTimeout();
+    }
+
+    /**
+     * The context presenting the keystore's key and trusting the truststore's
+     * certificates.  Built on first use.
+     */
+    public SSLContext getContext(String keyStoreId, String trustStoreId, String protocol) {
+        return contexts.computeIfAbsent(keyStoreId+"|"+trustStoreId+"|"+protocol,
+            k -> makeContext(keyStoreId, trustStoreId, protocol));
+    }
+
+    private SSLContext makeContext(String keyStoreId, String trustStoreId, String protocol) {
+        KeystoreInfo keyStoreInfo = keystoreConfig.getKeystores().get(keyStoreId);
+        try {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(getKeyStore(keyStoreId), keyStoreInfo.getKeyPassword().toCharArray());
+            KeyManager[] keyManagers = kmf.getKeyManagers();
+            if(keyStoreInfo.getKeyAlias() != null && !keyStoreInfo.getKeyAlias().isBlank()) {
+                keyManagers = new KeyManager[] { new AliasKeyManager((X509ExtendedKeyManager) keyManagers[0], keyStoreInfo.getKeyAlias()) };
+            }
+
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(getKeyStore(trustStoreId));
+
+            SSLContext context = SSLContext.getInstance(protocol);
+            context.init(keyManagers, tmf.getTrustManagers(), null);
+            for(SSLSessionContext sessions : new SSLSessionContext[] { context.getClientSessionContext(), context.getServerSessionContext() }) {
+                sessions.setSessionCacheSize(sessionCacheSize);
+                sessions.setSessionTimeout(sessionTimeout);
+            }
+
+            log.debug("Built {} context for keystore {} and truststore {}",protocol,keyStoreId,trustStoreId);
+            return context;
+        } catch(Exception ex) {
+            throw new IllegalStateException("Failed to setup SSL context for keystore "+keyStoreId+" and truststore "+trustStoreId, ex);
+        }
+    }
+
+    /**
+     * The keystore configured under id, read from disk on first use
+     */
+    public KeyStore getKeyStore(String id) {
+        return keyStores.computeIfAbsent(id, k -> {
+            KeystoreInfo info = keystoreConfig.getKeystores().get(id);
+            try {
+                return KeyStore.getInstance(new File(info.getFilePath()), info.getFilePassword().toCharArray());
+            } catch(Exception ex) {
+                throw new IllegalStateException("Could not load "+info.getFilePath(), ex);
+            }
+        });
+    }
+
+    /**
+     * Counts the handshake a client just finished on the socket, on its own
+     * thread so the stats keep up and no listener thread is started.  A
+     * resumed session was created before the connection was started.
+     * @param startedMillis when the client started connecting or handshaking
+     */
+    public void recordHandshake(Socket socket, long startedMillis) {
+        if(!(socket instanceof SSLSocket)) {
+            return;
+        }
+        SSLSession session = ((SSLSocket) socket).getSession();
+        if(!session.isValid()) {
+            // the handshake failed
+            return;
+        }
+        handshakes.incrementAndGet();
+        if(session.getCreationTime() < startedMillis) {
+            resumed.incrementAndGet();
+        }
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getResumedHandshakes() {
+        return resumed.get();
+    }
+
+    public TlsStats getStats() {
+        long total = handshakes.get();
+        long resumedCount = resumed.get();
+        double rate = total == 0 ? 0 : (double) resumedCount / total;
+        return new TlsStats(total, resumedCount, rate, contexts.size(), sessionCacheSize, sessionTimeout);
+    }
+
+    /**
+     * Always presents the configured alias, a keystore can hold more than one key
+     */
+    private static class AliasKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager delegate;
+        private final String alias;
+
+        AliasKeyManager(X509ExtendedKeyManager delegate, String alias) {
+            this.delegate = delegate;
+            this.alias = alias;
+        }
+
+        @Override public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) { return alias; }
+        @Override public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) { return alias; }
+        @Override public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) { return alias; }
+        @Override public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) { return alias; }
+        @Override public String[] getClientAliases(String keyType, Principal[] issuers) { return delegate.getClientAliases(keyType, issuers); }
+        @Override public String[] getServerAliases(String keyType, Principal[] issuers) { return delegate.getServerAliases(keyType, issuers); }
+        @Override public X509Certificate[] getCertificateChain(String alias) { return delegate.getCertificateChain(alias); }
+        @Override public PrivateKey getPrivateKey(String alias) { return delegate.getPrivateKey(alias); }
+    }
+}
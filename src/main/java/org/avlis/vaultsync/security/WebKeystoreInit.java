@@ -1,5 +1,6 @@
 package org.avlis.vaultsync.security;
 
+import java.security.KeyStore;
 import java.util.Map;
 
 import org.avlis.vaultsync.config.KeystoreInfo;
@@ -9,23 +10,34 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.boot.web.server.Ssl;
 import org.springframework.boot.web.server.Ssl.ClientAuth;
+import org.springframework.boot.web.server.ConfigurableWebServerFactory;
+import org.springframework.boot.web.server.SslStoreProvider;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
 /**
  * Use the project's certificate management configuration
- * instead of repeating the information for the web sever
+ * instead of repeating the information for the web sever.
+ *
+ * The keystores come from the SslContextRegistry so they're only read once.
+ * Tomcat still builds its own SSLContext from them, this version of Boot has
+ * no way to hand it ours.
  */
 @Component
 public class WebKeystoreInit {
     private KeystoreInfo keyStoreInfo;
     private KeystoreInfo trustStoreInfo;
     private Integer serverPort;
+    private KeyStore keyStore;
+    private KeyStore trustStore;
 
     @Autowired
-    public WebKeystoreInit(ReceiverConfig receiverConfig, KeystoreConfig keystoreConfig) {
+    public WebKeystoreInit(ReceiverConfig receiverConfig, KeystoreConfig keystoreConfig, SslContextRegistry sslContextRegistry) {
         Map<String, KeystoreInfo> keystores = keystoreConfig.getKeystores();
+        keyStore = sslContextRegistry.getKeyStore(receiverConfig.getKeyStore());
+        trustStore = sslContextRegistry.getKeyStore(receiverConfig.getTrustStore());
         keyStoreInfo = keystores.get(receiverConfig.getKeyStore());
         trustStoreInfo = keystores.get(receiverConfig.getTrustStore());
         serverPort = receiverConfig.getServerPort();
@@ -36,18 +48,30 @@ public class WebKeystoreInit {
     public ServerProperties serverProperties() {
         final ServerProperties serverProperties = new ServerProperties();
         Ssl ssl = new Ssl();
-        ssl.setKeyStore("file:"+keyStoreInfo.getFilePath());
+        // the stores themselves come from sslStoreCustomizer
         ssl.setKeyStorePassword(keyStoreInfo.getFilePassword());
-        ssl.setKeyStoreType("pkcs12");
         ssl.setKeyAlias(keyStoreInfo.getKeyAlias());
         ssl.setKeyPassword(keyStoreInfo.getKeyPassword());
-        ssl.setTrustStore("file:"+trustStoreInfo.getFilePath());
         ssl.setTrustStorePassword(trustStoreInfo.getFilePassword());
-        ssl.setTrustStoreType("pkcs12");
         ssl.setClientAuth(ClientAuth.WANT);
         serverProperties.setSsl(ssl);
         serverProperties.setPort(serverPort);
         return serverProperties;
     }
 
+    @Bean
+    public WebServerFactoryCustomizer<ConfigurableWebServerFactory> sslStoreCustomizer() {
+        return factory -> factory.setSslStoreProvider(new SslStoreProvider() {
+            @Override
+            public KeyStore getKeyStore() {
+                return keyStore;
+            }
+
+            @Override
+            public KeyStore getTrustStore() {
+                return trustStore;
+            }
+        });
+    }
+
 }
@@ -1,22 +1,30 @@
 package org.avlis.vaultsync.services;
 
-import java.io.File;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.ftpserver.ConnectionConfigFactory;
 import org.apache.ftpserver.DataConnectionConfigurationFactory;
 import org.apache.ftpserver.FtpServer;
 import org.apache.ftpserver.FtpServerFactory;
 import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.Ftplet;
 import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.ssl.ClientAuth;
 import org.apache.ftpserver.ssl.SslConfiguration;
-import org.apache.ftpserver.ssl.SslConfigurationFactory;
 import org.avlis.vaultsync.config.KeystoreInfo;
 import org.avlis.vaultsync.config.PeerConfig;
 import org.avlis.vaultsync.security.CertUserManager;
 import org.avlis.vaultsync.security.DenyListService;
+import org.avlis.vaultsync.security.SslContextRegistry;
 import org.avlis.vaultsync.config.KeystoreConfig;
 import org.avlis.vaultsync.config.CommonConfig;
 import org.avlis.vaultsync.config.FTPSServerConfig;
+import org.avlis.vaultsync.util.ChecksumUtil;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -24,29 +32,37 @@ import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 @Service
-public class FTPSServer {
+public class FTPSServer implements DisposableBean {
 
     private DenyListService denyListService;
     private CommonConfig commonConfig;
     private FTPSServerConfig ftpsServerConfig;
     private PeerConfig peerConfig;
+    private ChecksumUtil checksumUtil;
+    private UploadChecksumRegistry uploadChecksums;
+    private SslContextRegistry sslContextRegistry;
 
-    private static FtpServer server;
+    // one per application context, the loopback load test runs several in one JVM
+    private FtpServer server;
 
     @Autowired
     public FTPSServer(  CommonConfig commonConfig,
                         DenyListService denyListService,
                         FTPSServerConfig config,
-                        PeerConfig peerConfig)
+                        PeerConfig peerConfig,
+                        ChecksumUtil checksumUtil,
+                        UploadChecksumRegistry uploadChecksums,
+                        SslContextRegistry sslContextRegistry)
     {
         this.commonConfig = commonConfig;
         this.denyListService = denyListService;
         this.ftpsServerConfig = config;
         this.peerConfig = peerConfig;
+        this.checksumUtil = checksumUtil;
+        this.uploadChecksums = uploadChecksums;
+        this.sslContextRegistry = sslContextRegistry;
 
-        if(server == null) {
-            initFtpServer();
-        }
+        initFtpServer();
     }
 
     // NOTE: Split server instantiation from the constructor in case
@@ -62,29 +78,29 @@ public class FTPSServer {
         factory.setPort(ftpsServerConfig.getPort());
         // No clue why FtpServer doesn't sanely log auth failures by default.
         // Watch the requests and responses for errors that should be logged, eg. authentication
-        serverFactory.setFtplets(Collections.singletonMap("cmdErrorLog", new FTPSCommandErrorLogger()));
+        // FtpServer clears the map when it's stopped, it has to be mutable
+        Map<String, Ftplet> ftplets = new HashMap<>();
+        ftplets.put("cmdErrorLog", new FTPSCommandErrorLogger());
+        serverFactory.setFtplets(ftplets);
 
-        // Implement FTPS - ftp over TLS/SSL
-        SslConfigurationFactory ssl = new SslConfigurationFactory();
+        // FtpServer caps logins across all users at 10 unless told otherwise.
+        // Peers keep their sessions logged in now, a few peers use that up.
+        ConnectionConfigFactory connectionConfigFactory = new ConnectionConfigFactory();
+        connectionConfigFactory.setMaxLogins(ftpsServerConfig.getMaxlogins());
+        serverFactory.setConnectionConfig(connectionConfigFactory.createConnectionConfig());
 
+        // Implement FTPS - ftp over TLS/SSL
         String keyStoreId = ftpsServerConfig.getKeyStore();
         KeystoreInfo keystoreInfo = keystoreConfig.getKeystores().get(keyStoreId);
         String keyPassword = keystoreInfo.getKeyPassword();
         if(keyPassword == null || keyPassword.isEmpty()) {
             log.warn("The 'keyPassword' field for the '"+keyStoreId+"' keystore configuration is blank.  If you're getting an UnrecoverableKeyException please check.");
         }
-        ssl.setKeystoreFile(new File(keystoreInfo.getFilePath()));
-        ssl.setKeystorePassword(keystoreInfo.getFilePassword());
-        ssl.setKeyPassword(keyPassword);
-        ssl.setKeyAlias(keystoreInfo.getKeyAlias());
-
-        // Require trusted client cert
-        KeystoreInfo truststoreInfo = keystoreConfig.getKeystores().get(ftpsServerConfig.getTrustStore());
-        ssl.setClientAuthentication("true");
-        ssl.setTruststoreFile(new File(truststoreInfo.getFilePath()));
-        ssl.setTruststorePassword(truststoreInfo.getFilePassword());
-
-        SslConfiguration sslConfiguration = ssl.createSslConfiguration();
+
+        // Require trusted client cert.  Control and data connections share the
+        // context so a data connection can resume the control connection's session.
+        SslConfiguration sslConfiguration = new SharedSslConfiguration(
+            sslContextRegistry.getContext(keyStoreId, ftpsServerConfig.getTrustStore(), SslContextRegistry.DEFAULT_PROTOCOL));
         DataConnectionConfigurationFactory dcConfFactory = new DataConnectionConfigurationFactory();
 
         dcConfFactory.setPassiveExternalAddress(commonConfig.getPublicAddress());
@@ -102,6 +118,9 @@ public class FTPSServer {
         // Usermanager
         serverFactory.setUserManager(new CertUserManager(commonConfig.getFtpHomeDirs(),denyListService,ftpsServerConfig,peerConfig));
 
+        // Hash uploads as they arrive so verification doesn't re-read them
+        serverFactory.setFileSystem(new HashingFileSystemFactory(checksumUtil, uploadChecksums));
+
         // start the server
         server = serverFactory.createServer();
         try {       
@@ -110,4 +129,56 @@ public class FTPSServer {
             e.printStackTrace(System.out); 
         }
     }    
+
+    @Override
+    public void destroy() {
+        if(server != null && !server.isStopped()) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Hands FtpServer the registry's context instead of letting it build its
+     * own from the keystore files.
+     */
+    private static class SharedSslConfiguration implements SslConfiguration {
+        private final SSLContext sslContext;
+
+        SharedSslConfiguration(SSLContext sslContext) {
+            this.sslContext = sslContext;
+        }
+
+        @Override
+        public SSLSocketFactory getSocketFactory() {
+            return sslContext.getSocketFactory();
+        }
+
+        @Override
+        public SSLContext getSSLContext() {
+            return sslContext;
+        }
+
+        @Override
+        public SSLContext getSSLContext(String protocol) {
+            return sslContext;
+        }
+
+        // null leaves the context's defaults in place
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return null;
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            // FtpServer's own default.  Its TLS filter stalls logins under load
+            // when TLS 1.3 gets negotiated.
+            return new String[] { "TLSv1.2" };
+        }
+
+        @Override
+        public ClientAuth getClientAuth() {
+            return ClientAuth.NEED;
+        }
+    }
 }
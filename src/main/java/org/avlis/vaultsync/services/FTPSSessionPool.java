@@ -0,0 +1,134 @@
+package org.avlis.vaultsync.services;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.avlis.vaultsync.config.FTPSClientConfig;
+import org.avlis.vaultsync.config.PeerInfo;
+import org.avlis.vaultsync.config.SenderConfig;
+import org.avlis.vaultsync.util.FTPSSessionFactory;
+import org.avlis.vaultsync.util.PeerFTPSClient;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Logged in FTPS control sessions kept per peer so a transfer only has to
+ * set up the data channel.  Idle sessions are kept alive with NOOP and
+ * closed once they've been idle longer than ftps.client.idleTimeout.
+ */
+@Slf4j
+@Component
+public class FTPSSessionPool implements DisposableBean {
+
+    private GenericKeyedObjectPool<PeerInfo, PeerFTPSClient> pool;
+    // peers a reload dropped or changed, their sessions are closed as they come back
+    private Set<PeerInfo> retired = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public FTPSSessionPool( FTPSClientConfig config,
+                            SenderConfig senderConfig,
+                            FTPSSessionFactory factory,
+                            MeterRegistry registry)
+    {
+        GenericKeyedObjectPoolConfig<PeerFTPSClient> poolConfig = new GenericKeyedObjectPoolConfig<>();
+        poolConfig.setMaxTotalPerKey(config.getMaxPoolSize());
+        poolConfig.setMaxIdlePerKey(config.getMaxPoolSize());
+        poolConfig.setMinIdlePerKey(config.getMinPoolSize());
+        poolConfig.setMaxWait(Duration.ofSeconds(senderConfig.getConnectionRequestTimeout()));
+        poolConfig.setTestOnBorrow(true);
+        poolConfig.setTestWhileIdle(true);
+        // check every idle session on each run
+        poolConfig.setNumTestsPerEvictionRun(-1);
+        poolConfig.setTimeBetweenEvictionRuns(Duration.ofSeconds(config.getEvictionInterval()));
+        // only trim sessions above minPoolSize, the rest are kept alive with NOOP
+        poolConfig.setMinEvictableIdleTime(Duration.ofMillis(-1));
+        poolConfig.setSoftMinEvictableIdleTime(Duration.ofSeconds(config.getIdleTimeout()));
+        poolConfig.setJmxEnabled(false);
+
+        pool = new GenericKeyedObjectPool<>(factory, poolConfig);
+
+        // across all peers
+        Gauge.builder("vaultsync.ftps.sessions.active", pool, p -> p.getNumActive())
+            .register(registry);
+        Gauge.builder("vaultsync.ftps.sessions.idle", pool, p -> p.getNumIdle())
+            .register(registry);
+    }
+
+    public PeerFTPSClient borrow(PeerInfo peer) throws Exception {
+        return pool.borrowObject(peer);
+    }
+
+    /**
+     * Hands a healthy session back for the next transfer to the peer
+     */
+    public void release(PeerInfo peer, PeerFTPSClient session) {
+        if(retired.contains(peer)) {
+            invalidate(peer, session);
+            return;
+        }
+        pool.returnObject(peer, session);
+    }
+
+    /**
+     * Closes the peer's idle sessions now and the ones in use as their
+     * transfers finish.  The peer was removed or changed by a reload.
+     */
+    public void retire(PeerInfo peer) {
+        retired.add(peer);
+        pool.clear(peer);
+        forgetIfDrained(peer);
+    }
+
+    /**
+     * Closes a session that's in an unknown state, eg. after an error or abort
+     */
+    public void invalidate(PeerInfo peer, PeerFTPSClient session) {
+        try {
+            pool.invalidateObject(peer, session);
+        } catch(Exception ex) {
+            log.debug("Exception invalidating FTPS session to {}: {}",peer.getHost(),ex.getMessage());
+        }
+        forgetIfDrained(peer);
+    }
+
+    /**
+     * Once a retired peer's last session is closed it's gone from the pool,
+     * and it can be forgotten here too
+     */
+    private void forgetIfDrained(PeerInfo peer) {
+        if(retired.contains(peer) && pool.getNumActive(peer) == 0) {
+            // and anything the evictor opened to keep minPoolSize
+            pool.clear(peer);
+            retired.remove(peer);
+        }
+    }
+
+    /**
+     * Opens sessions to the peer until it has minPoolSize idle ones
+     */
+    public void prepare(PeerInfo peer) throws Exception {
+        pool.preparePool(peer);
+    }
+
+    public int getNumActive(PeerInfo peer) {
+        return pool.getNumActive(peer);
+    }
+
+    public int getNumIdle(PeerInfo peer) {
+        return pool.getNumIdle(peer);
+    }
+
+    @Override
+    public void destroy() {
+        log.debug("Closing pooled FTPS sessions");
+        pool.close();
+    }
+}
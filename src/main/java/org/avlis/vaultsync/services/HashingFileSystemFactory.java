@@ -0,0 +1,186 @@
+package org.avlis.vaultsync.services;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.ftplet.FileSystemFactory;
+import org.apache.ftpserver.ftplet.FileSystemView;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.User;
+import org.avlis.vaultsync.util.ChecksumUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The native file system, except uploads are hashed and counted as they're
+ * written.  The results land in the UploadChecksumRegistry for verifyTransfer().
+ * Resumed uploads hash the part already on disk first so the digest still
+ * covers the whole file.
+ */
+@Slf4j
+public class HashingFileSystemFactory implements FileSystemFactory {
+
+    private final NativeFileSystemFactory nativeFactory = new NativeFileSystemFactory();
+    private final ChecksumUtil checksumUtil;
+    private final UploadChecksumRegistry registry;
+
+    public HashingFileSystemFactory(ChecksumUtil checksumUtil, UploadChecksumRegistry registry) {
+        this.checksumUtil = checksumUtil;
+        this.registry = registry;
+    }
+
+    @Override
+    public FileSystemView createFileSystemView(User user) throws FtpException {
+        return new HashingFileSystemView(nativeFactory.createFileSystemView(user));
+    }
+
+    private class HashingFileSystemView implements FileSystemView {
+        private final FileSystemView delegate;
+
+        HashingFileSystemView(FileSystemView delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public FtpFile getHomeDirectory() throws FtpException {
+            return delegate.getHomeDirectory();
+        }
+
+        @Override
+        public FtpFile getWorkingDirectory() throws FtpException {
+            return delegate.getWorkingDirectory();
+        }
+
+        @Override
+        public boolean changeWorkingDirectory(String dir) throws FtpException {
+            return delegate.changeWorkingDirectory(dir);
+        }
+
+        @Override
+        public FtpFile getFile(String file) throws FtpException {
+            return new HashingFtpFile(delegate.getFile(file));
+        }
+
+        @Override
+        public boolean isRandomAccessible() throws FtpException {
+            return delegate.isRandomAccessible();
+        }
+
+        @Override
+        public void dispose() {
+            delegate.dispose();
+        }
+    }
+
+    private class HashingFtpFile implements FtpFile {
+        private final FtpFile delegate;
+
+        HashingFtpFile(FtpFile delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OutputStream createOutputStream(long offset) throws IOException {
+            File physicalFile = (File) delegate.getPhysicalFile();
+            MessageDigest digest = checksumUtil.newDigest();
+            registry.discard(physicalFile.toPath());
+
+            // a resumed upload (REST) carries on from the bytes we already have
+            long kept = offset > 0 ? hashPrefix(physicalFile, offset, digest) : 0;
+
+            OutputStream os = delegate.createOutputStream(offset);
+            return new HashingOutputStream(os, physicalFile, digest, kept);
+        }
+
+        /**
+         * Adds the first offset bytes of the file to the digest
+         * @return the number of bytes hashed, less than offset if the file is shorter
+         */
+        private long hashPrefix(File file, long offset, MessageDigest digest) throws IOException {
+            long hashed = 0;
+            byte[] buffer = new byte[64 * 1024];
+            try(InputStream in = new FileInputStream(file)) {
+                int read;
+                while(hashed < offset && (read = in.read(buffer, 0, (int) Math.min(buffer.length, offset - hashed))) != -1) {
+                    digest.update(buffer, 0, read);
+                    hashed += read;
+                }
+            } catch(FileNotFoundException ex) {
+                return 0;
+            }
+            return hashed;
+        }
+
+        @Override
+        public boolean move(FtpFile destination) {
+            // the native implementation needs its own type
+            if(destination instanceof HashingFtpFile) {
+                destination = ((HashingFtpFile) destination).delegate;
+            }
+            return delegate.move(destination);
+        }
+
+        @Override public String getAbsolutePath() { return delegate.getAbsolutePath(); }
+        @Override public String getName() { return delegate.getName(); }
+        @Override public boolean isHidden() { return delegate.isHidden(); }
+        @Override public boolean isDirectory() { return delegate.isDirectory(); }
+        @Override public boolean isFile() { return delegate.isFile(); }
+        @Override public boolean doesExist() { return delegate.doesExist(); }
+        @Override public boolean isReadable() { return delegate.isReadable(); }
+        @Override public boolean isWritable() { return delegate.isWritable(); }
+        @Override public boolean isRemovable() { return delegate.isRemovable(); }
+        @Override public String getOwnerName() { return delegate.getOwnerName(); }
+        @Override public String getGroupName() { return delegate.getGroupName(); }
+        @Override public int getLinkCount() { return delegate.getLinkCount(); }
+        @Override public long getLastModified() { return delegate.getLastModified(); }
+        @Override public boolean setLastModified(long time) { return delegate.setLastModified(time); }
+        @Override public long getSize() { return delegate.getSize(); }
+        @Override public Object getPhysicalFile() { return delegate.getPhysicalFile(); }
+        @Override public boolean mkdir() { return delegate.mkdir(); }
+        @Override public boolean delete() { return delegate.delete(); }
+        @Override public List<? extends FtpFile> listFiles() { return delegate.listFiles(); }
+        @Override public InputStream createInputStream(long offset) throws IOException { return delegate.createInputStream(offset); }
+    }
+
+    private class HashingOutputStream extends FilterOutputStream {
+        private final File physicalFile;
+        private final MessageDigest digest;
+        private long size = 0;
+        private boolean closed = false;
+
+        HashingOutputStream(OutputStream out, File physicalFile, MessageDigest digest, long size) {
+            super(out);
+            this.physicalFile = physicalFile;
+            this.digest = digest;
+            this.size = size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            digest.update((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            super.close();
+            registry.record(physicalFile.toPath(), size, ChecksumUtil.toHex(digest.digest()));
+            log.debug("Recorded {} bytes for {}",size,physicalFile);
+        }
+    }
+}
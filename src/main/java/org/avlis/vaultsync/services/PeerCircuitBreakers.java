@@ -0,0 +1,103 @@
+package org.avlis.vaultsync.services;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.avlis.vaultsync.config.PeerConfig;
+import org.avlis.vaultsync.config.PeerInfo;
+import org.avlis.vaultsync.config.SenderConfig;
+import org.avlis.vaultsync.util.CircuitBreaker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * One CircuitBreaker for each peer we send to.  The PeerInfo instance from
+ * PeerConfig is the key.  Each breaker's state is published tagged with the
+ * peer's name, like the other destination tagged meters.
+ */
+@Component
+public class PeerCircuitBreakers {
+
+    // 0 closed, 1 open, 2 half open
+    public static final String STATE = "vaultsync.peer.breaker.state";
+    // failures since the last success
+    public static final String FAILURES = "vaultsync.peer.breaker.failures";
+
+    private int failureThreshold;
+    private long openMillis;
+    private PeerConfig peerConfig;
+    private MeterRegistry registry;
+
+    private Map<PeerInfo, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private Set<String> gauged = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public PeerCircuitBreakers(SenderConfig senderConfig, PeerConfig peerConfig, TransferMetrics metrics) {
+        failureThreshold = senderConfig.getBreakerFailures();
+        openMillis = TimeUnit.SECONDS.toMillis(senderConfig.getBreakerOpenTime());
+        this.peerConfig = peerConfig;
+        this.registry = metrics.getRegistry();
+
+        if(peerConfig.getPeers() != null) {
+            peerConfig.getPeers().keySet().forEach(this::registerGauges);
+        }
+    }
+
+    public CircuitBreaker get(PeerInfo peer) {
+        return breakers.computeIfAbsent(peer, k -> {
+            // a peer added by a reload gets its gauges on first use
+            Map<String,PeerInfo> peers = peerConfig.getPeers();
+            if(peers != null) {
+                peers.forEach((name, info) -> {
+                    if(info == k) {
+                        registerGauges(name);
+                    }
+                });
+            }
+            return new CircuitBreaker(failureThreshold, openMillis);
+        });
+    }
+
+    /**
+     * Forgets the breaker of a peer a reload removed or changed
+     */
+    public void remove(PeerInfo peer) {
+        breakers.remove(peer);
+    }
+
+    /**
+     * The gauges follow the name, a changed peer's new breaker takes over
+     */
+    private void registerGauges(String destination) {
+        if(!gauged.add(destination)) {
+            return;
+        }
+        Gauge.builder(STATE, destination, name -> {
+                CircuitBreaker breaker = current(name);
+                return breaker == null ? 0 : breaker.getState().ordinal();
+            })
+            .description("0 closed, 1 open, 2 half open")
+            .tag("destination", destination)
+            .register(registry);
+        Gauge.builder(FAILURES, destination, name -> {
+                CircuitBreaker breaker = current(name);
+                return breaker == null ? 0 : breaker.getFailures();
+            })
+            .tag("destination", destination)
+            .register(registry);
+    }
+
+    /**
+     * @return the breaker of the peer by that name now, null if it has none yet
+     */
+    private CircuitBreaker current(String destination) {
+        Map<String,PeerInfo> peers = peerConfig.getPeers();
+        PeerInfo peer = peers == null ? null : peers.get(destination);
+        return peer == null ? null : breakers.get(peer);
+    }
+}
@@ -0,0 +1,116 @@
+package org.avlis.vaultsync.services;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Objects;
+
+import org.avlis.vaultsync.config.PeerConfig;
+import org.avlis.vaultsync.config.PeerInfo;
+import org.avlis.vaultsync.config.ReceiverConfig;
+import org.avlis.vaultsync.models.RequestStatus;
+import org.avlis.vaultsync.security.SecureRestTemplateCustomizer;
+import org.avlis.vaultsync.util.FileWatcher;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Re-reads peersFile when it changes, or when asked through
+ * /v1/admin/peers/reload, and swaps the new peers in.  Peers whose settings
+ * didn't change keep their sessions, breaker and in-flight transfers.
+ * Removed and changed peers have their pooled sessions closed, the ones in
+ * use close as their transfers finish.  Transfers already queued or running
+ * finish against the settings they started with.  New and changed peers get
+ * an immediate probe to warm their pools.  If the file sets receiver.subnet
+ * it replaces the one in application.yml and applies from the next request.
+ */
+@Slf4j
+@Component
+public class PeerConfigReloader implements DisposableBean {
+
+    private PeerConfig peerConfig;
+    private ReceiverConfig receiverConfig;
+    private FTPSSessionPool sessionPool;
+    private PeerCircuitBreakers breakers;
+    private PeerHealthProber prober;
+    private SecureRestTemplateCustomizer restClient;
+
+    private FileWatcher watcher = null;
+
+    @Autowired
+    public PeerConfigReloader(  PeerConfig peerConfig,
+                                ReceiverConfig receiverConfig,
+                                FTPSSessionPool sessionPool,
+                                PeerCircuitBreakers breakers,
+                                PeerHealthProber prober,
+                                SecureRestTemplateCustomizer restClient)
+    {
+        this.peerConfig = peerConfig;
+        this.receiverConfig = receiverConfig;
+        this.sessionPool = sessionPool;
+        this.breakers = breakers;
+        this.prober = prober;
+        this.restClient = restClient;
+
+        String peersFile = peerConfig.getPeersFile();
+        if(peerConfig.getPeersFileSubnet() != null) {
+            receiverConfig.setSubnet(peerConfig.getPeersFileSubnet());
+            log.info("Using receiver.subnet {} from {}",receiverConfig.getSubnet(),peersFile);
+        }
+        if(peersFile != null && peerConfig.getPeersFileReloadDelay() > 0) {
+            try {
+                watcher = new FileWatcher(Paths.get(peersFile), peerConfig.getPeersFileReloadDelay(), "peers-watcher", this::reload);
+            } catch(IOException ex) {
+                log.warn("Can't watch {} for changes, use /v1/admin/peers/reload after editing it",peersFile,ex);
+            }
+        }
+    }
+
+    /**
+     * Reads peersFile and swaps in its peers and subnet.  If it can't be read,
+     * a peer or the subnet is invalid, the current ones stay in place.
+     */
+    public synchronized RequestStatus reload() {
+        String peersFile = peerConfig.getPeersFile();
+        if(peersFile == null) {
+            return new RequestStatus(404, "peersFile isn't set, peers in application.yml need a restart");
+        }
+
+        PeerConfig.PeersFile loaded;
+        try {
+            loaded = peerConfig.readPeersFile();
+        } catch(IOException | RuntimeException ex) {
+            log.error("Kept the current peers, could not read {}: {}",peersFile,ex.getMessage());
+            return new RequestStatus(500, "Could not read "+peersFile+": "+ex.getMessage());
+        }
+
+        PeerConfig.Changes changes = peerConfig.replacePeers(loaded.getPeers());
+        for(PeerInfo retired : changes.getRetired()) {
+            sessionPool.retire(retired);
+            breakers.remove(retired);
+        }
+        restClient.setPeerCount(loaded.getPeers().size());
+        if(!changes.getAdded().isEmpty() || !changes.getChanged().isEmpty()) {
+            prober.probeNow();
+        }
+
+        String summary = changes.toString();
+        // a subnet removed from the file stays as it was until a restart
+        if(loaded.getSubnet() != null && !Objects.equals(loaded.getSubnet(), receiverConfig.getSubnet())) {
+            receiverConfig.setSubnet(loaded.getSubnet());
+            summary += ", subnet is now "+loaded.getSubnet();
+        }
+
+        log.info("Reloaded peers from {}: {}",peersFile,summary);
+        return new RequestStatus(200, summary);
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if(watcher != null) {
+            watcher.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.avlis.vaultsync.services;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.net.ssl.SSLSocket;
+
+import org.avlis.vaultsync.config.PeerConfig;
+import org.avlis.vaultsync.config.PeerInfo;
+import org.avlis.vaultsync.config.SenderConfig;
+import org.avlis.vaultsync.models.PeerHealth;
+import org.avlis.vaultsync.models.RequestStatus;
+import org.avlis.vaultsync.security.SecureRestTemplateCustomizer;
+import org.avlis.vaultsync.util.CircuitBreaker;
+import org.avlis.vaultsync.util.PeerFTPSClient;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Checks every enabled peer on a schedule so we know it's down before a
+ * player tries to portal there.  Each pass also keeps a REST connection and
+ * the minimum FTPS sessions open, so the first transfer after a quiet spell
+ * doesn't pay for the handshakes.
+ */
+@Slf4j
+@Component
+public class PeerHealthProber implements DisposableBean {
+
+    private PeerConfig peerConfig;
+    private SecureRestTemplateCustomizer restClient;
+    private FTPSSessionPool sessionPool;
+    private PeerCircuitBreakers breakers;
+    private RestTemplate restTemplate;
+
+    private int connectTimeoutMillis;
+
+    private Map<String, PeerHealth> health = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler = null;
+
+    @Autowired
+    public PeerHealthProber(SenderConfig senderConfig,
+                            PeerConfig peerConfig,
+                            SecureRestTemplateCustomizer restClient,
+                            FTPSSessionPool sessionPool,
+                            PeerCircuitBreakers breakers,
+                            RestTemplateBuilder restTemplateBuilder)
+    {
+        this.peerConfig = peerConfig;
+        this.restClient = restClient;
+        this.sessionPool = sessionPool;
+        this.breakers = breakers;
+        this.restTemplate = restTemplateBuilder.build();
+        this.connectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(senderConfig.getConnectTimeout());
+
+        int interval = senderConfig.getProbeInterval();
+        if(interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "peer-prober");
+                t.setDaemon(true);
+                return t;
+            });
+            // first pass right away so the pools are warm before the first portal
+            scheduler.scheduleWithFixedDelay(this::probeAll, 0, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs a pass now, eg. to warm the pools of peers a reload added
+     */
+    public void probeNow() {
+        if(scheduler != null) {
+            scheduler.execute(this::probeAll);
+        }
+    }
+
+    /**
+     * Latest probe results for each enabled peer
+     */
+    public List<PeerHealth> getHealth() {
+        List<PeerHealth> results = new ArrayList<>();
+        for(String destination : peerConfig.getPeers().keySet()) {
+            PeerHealth peerHealth = health.get(destination);
+            if(peerHealth != null) {
+                results.add(peerHealth);
+            }
+        }
+        return results;
+    }
+
+    private void probeAll() {
+        for(Map.Entry<String, PeerInfo> entry : peerConfig.getPeers().entrySet()) {
+            if(!entry.getValue().getEnabled()) {
+                continue;
+            }
+            try {
+                probe(entry.getKey(), entry.getValue());
+            } catch(RuntimeException ex) {
+                // never let one peer stop the schedule
+                log.error("Probe of {} failed",entry.getKey(),ex);
+            }
+        }
+    }
+
+    private void probe(String destination, PeerInfo peer) {
+        String error = null;
+
+        long restRtt = -1;
+        long start = System.nanoTime();
+        try {
+            RequestStatus status = restTemplate.getForObject("https://"+peer.getHost()+":"+peer.getRestPort()+"/v1/sync/ping", RequestStatus.class);
+            if(status != null && status.getStatusCode() == 200) {
+                restRtt = elapsedMillis(start);
+            } else {
+                error = "Unexpected ping reply";
+            }
+        } catch(Exception ex) {
+            error = "REST: "+ex.getMessage();
+        }
+
+        long handshake = measureHandshake(peer);
+
+        long ftpsRtt = -1;
+        try {
+            sessionPool.prepare(peer);
+            ftpsRtt = pingFtps(peer);
+        } catch(Exception ex) {
+            if(error == null) {
+                error = "FTPS: "+ex.getMessage();
+            }
+        }
+
+        boolean up = error == null;
+        CircuitBreaker breaker = breakers.get(peer);
+        if(up) {
+            breaker.recordSuccess();
+        } else {
+            breaker.recordFailure();
+        }
+
+        PeerHealth previous = health.put(destination, new PeerHealth(destination, up, restRtt, handshake, ftpsRtt, System.currentTimeMillis(), error));
+        if(previous != null && previous.isUp() != up) {
+            if(up) {
+                log.info("Peer {} is back up",destination);
+            } else {
+                log.warn("Peer {} is down: {}",destination,error);
+            }
+        }
+        log.debug("Probed {} rest={}ms handshake={}ms ftps={}ms",destination,restRtt,handshake,ftpsRtt);
+    }
+
+    /**
+     * Connect and TLS handshake on a socket of our own, the pooled
+     * connections have already done theirs
+     */
+    private long measureHandshake(PeerInfo peer) {
+        long start = System.nanoTime();
+        try(SSLSocket socket = (SSLSocket) restClient.getSslContext().getSocketFactory().createSocket()) {
+            socket.connect(new InetSocketAddress(peer.getHost(), peer.getRestPort()), connectTimeoutMillis);
+            socket.setSoTimeout(connectTimeoutMillis);
+            socket.startHandshake();
+            return elapsedMillis(start);
+        } catch(Exception ex) {
+            log.debug("Handshake with {}:{} failed: {}",peer.getHost(),peer.getRestPort(),ex.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * NOOP on an idle pooled session.  Sessions in use by transfers are left alone.
+     */
+    private long pingFtps(PeerInfo peer) throws Exception {
+        if(sessionPool.getNumIdle(peer) == 0) {
+            return -1;
+        }
+        PeerFTPSClient session = sessionPool.borrow(peer);
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            ok = session.sendNoOp();
+        } catch(Exception ex) {
+            sessionPool.invalidate(peer, session);
+            throw ex;
+        }
+        if(!ok) {
+            sessionPool.invalidate(peer, session);
+            throw new IllegalStateException("NOOP rejected: "+session.getReplyString());
+        }
+        long rtt = elapsedMillis(start);
+        sessionPool.release(peer, session);
+        return rtt;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void destroy() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
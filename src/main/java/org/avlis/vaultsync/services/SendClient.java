@@ -1,100 +1,89 @@
 package org.avlis.vaultsync.services;
 
 import java.io.*;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
-import java.security.GeneralSecurityException;
-import java.security.KeyStore;
+import java.nio.file.Files;
 import java.util.Collections;
+import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.TrustManager;
+import javax.net.ssl.SSLHandshakeException;
 
-import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPSClient;
-import org.apache.commons.net.util.KeyManagerUtils;
-import org.apache.commons.net.util.TrustManagerUtils;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.hc.client5.http.ConnectTimeoutException;
 import org.avlis.vaultsync.config.CommonConfig;
 import org.avlis.vaultsync.config.FTPSClientConfig;
-import org.avlis.vaultsync.config.KeystoreConfig;
-import org.avlis.vaultsync.config.KeystoreInfo;
 import org.avlis.vaultsync.config.PeerInfo;
+import org.avlis.vaultsync.config.RetryPolicy;
 import org.avlis.vaultsync.config.SenderConfig;
 import org.avlis.vaultsync.models.*;
 import org.avlis.vaultsync.util.ChecksumUtil;
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.avlis.vaultsync.util.CircuitBreaker;
+import org.avlis.vaultsync.util.PeerFTPSClient;
 import org.springframework.http.*;
 import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
 
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class SendClient {
 
-    private ChecksumUtil checksumUtil;
-    private RestTemplateBuilder restTemplateBuilder;
+    // bytes written between progress updates and abort checks
+    private static final int CHUNK_SIZE = 4096;
 
-    private KeystoreInfo trustStoreInfo;
-    private KeystoreInfo keyStoreInfo;
+    private ChecksumUtil checksumUtil;
+    private RestTemplate restTemplate;
+    private FTPSSessionPool sessionPool;
+    private TransferJournal journal;
+    private PeerCircuitBreakers breakers;
+    private TransferMetrics metrics;
 
-    private FTPSClient ftpsClient;
+    private int compressionLevel;
+    private RetryPolicy startRetry;
+    private RetryPolicy uploadRetry;
+    private RetryPolicy verifyRetry;
 
     private boolean logRestExceptions;
     private boolean logFtpsException;
 
     private boolean busy = false;
     private boolean aborted = false;
+    // metrics tag of the transfer in progress
+    private String destination;
 
     // DO NOT AUTOWIRE - This is managed by the FTPSClientPoolFactory
     public SendClient(  FTPSClientConfig ftpClientConfig,
                         CommonConfig commonConfig,
                         SenderConfig senderConfig,
                         ChecksumUtil checksumUtil,
-                        KeystoreConfig keystoreConfig,
-                        RestTemplateBuilder restTemplateBuilder)
+                        FTPSSessionPool sessionPool,
+                        TransferJournal journal,
+                        PeerCircuitBreakers breakers,
+                        TransferMetrics metrics,
+                        RestTemplate restTemplate)
     {
         this.checksumUtil = checksumUtil;
-        this.restTemplateBuilder = restTemplateBuilder;
+        this.sessionPool = sessionPool;
+        this.journal = journal;
+        this.breakers = breakers;
+        this.metrics = metrics;
+        this.restTemplate = restTemplate;
 
-        trustStoreInfo = keystoreConfig.getKeystores().get(ftpClientConfig.getTrustStore());
-        keyStoreInfo = keystoreConfig.getKeystores().get(ftpClientConfig.getKeyStore());
+        compressionLevel = ftpClientConfig.getCompressionLevel();
+        startRetry = senderConfig.getRetry().getStart();
+        uploadRetry = senderConfig.getRetry().getUpload();
+        verifyRetry = senderConfig.getRetry().getVerify();
 
         logRestExceptions = commonConfig.isLogAllExceptions() || senderConfig.isLogExceptions();
         logFtpsException = commonConfig.isLogAllExceptions() || ftpClientConfig.isLogExceptions();
-
-        ftpsClient = makeFTPSClient();
-    }
-
-    private FTPSClient makeFTPSClient() {
-        FTPSClient ftpsClient = new FTPSClient();
-
-        try {
-            KeyStore truststore = KeyStore.getInstance(new File(trustStoreInfo.getFilePath()), trustStoreInfo.getFilePassword().toCharArray());
-            TrustManager trustManager = TrustManagerUtils.getDefaultTrustManager(truststore);
-            ftpsClient.setTrustManager(trustManager);
-        } catch (IOException | GeneralSecurityException e) {
-            log.error("Problem making truststore: {}",e.getMessage());
-            if(logFtpsException) {
-                log.debug("truststore exception: ",e);
-            }
-        }
-
-        try {
-            KeyManager keyManager = KeyManagerUtils.createClientKeyManager("JKS",
-                new File(keyStoreInfo.getFilePath()),
-                keyStoreInfo.getFilePassword(),
-                keyStoreInfo.getKeyAlias(),
-                keyStoreInfo.getKeyPassword());
-            ftpsClient.setKeyManager(keyManager);
-        } catch (IOException | GeneralSecurityException e) {
-            log.error("Problem making keystore: {}",e.getMessage());
-            if(logFtpsException) {
-                log.debug("keystore exception: ",e);
-            }
-        }
-
-        return ftpsClient;
     }
 
     public boolean isBusy() {
@@ -108,27 +97,55 @@ public class SendClient {
     public void startPeer(File sourceFile, PeerInfo peer, TransferRequest xferRequest) {
         busy = true;
         aborted = false;
+        destination = xferRequest.getDestination();
 
         TransferStatus xferStatus = xferRequest.getStatus();
         String baseUrl = "https://"+peer.getHost()+":"+peer.getRestPort();
 
+        // Read the bic once.  The checksum, size and upload all come from this
+        // copy so NWN rewriting the file mid-transfer can't make them disagree.
+        byte[] payload;
+        try {
+            payload = Files.readAllBytes(sourceFile.toPath());
+        } catch(IOException ex) {
+            log.error("Could not read {} for transfer: {}",sourceFile,ex.getMessage());
+            xferStatus.setStatusCode(500);
+            xferStatus.setErrorMessage("Could not transfer, please contact the staff");
+            busy = false;
+            return;
+        }
+
         // call peer /v1/sync/start
         SyncData syncData = new SyncData();
         syncData.setCharacterName(xferRequest.getCharacterName());
         syncData.setLoginName(xferRequest.getLoginName());
         syncData.setCdkey(xferRequest.getCdkey());
         syncData.setFileName(xferRequest.getFileName());
-        syncData.setFileSize(sourceFile.length());
-        syncData.setChecksum(checksumUtil.getChecksum(sourceFile.toPath()));
+        syncData.setFileSize(payload.length);
+        syncData.setChecksum(checksumUtil.getChecksum(payload));
+
+        // don't wait out the connect timeout on a peer that's known to be down
+        CircuitBreaker breaker = breakers.get(peer);
+        if(!breaker.tryAcquire()) {
+            log.warn("Peer {} is down, failing transfer for {} / {}",peer.getHost(),xferRequest.getCdkey(),xferRequest.getCharacterName());
+            xferStatus.setStatusCode(503);
+            xferStatus.setErrorMessage("The destination is not responding, please try again later");
+            busy = false;
+            return;
+        }
 
         StartResults startResults;
         log.debug("Before {}/v1/sync/start",baseUrl);
+        Timer.Sample startSample = metrics.start();
         try {
-            startResults = callRestService(baseUrl, HttpMethod.POST, "/v1/sync/start", syncData, StartResults.class);
+            // start isn't idempotent, once the peer may have seen it only the peer knows if it registered
+            startResults = callPeer(startRetry, "start", false, breaker,
+                () -> callRestService(baseUrl, HttpMethod.POST, "/v1/sync/start", syncData, StartResults.class));
         } catch(RestClientResponseException e) {
             log.info("call to /v1/sync/start failed: see the restTemplate.exchange() error");
             startResults = new StartResults(null, 500, "Problem with transfer. Please contact the staff");
         }
+        metrics.sendPhase(startSample, TransferMetrics.START, destination);
         log.debug("After /v1/sync/start");
 
         if(startResults.getStatusCode() > 299) {
@@ -148,21 +165,26 @@ public class SendClient {
         RequestData requestData = new RequestData();
         requestData.setRequestId(UUID.fromString(syncId));
 
-        log.debug("Before FTPS");
-        send(sourceFile, syncId, peer, xferStatus);
-        log.debug("After FTPS");
+        // if we restart from here on the peer's transfer needs cancelling
+        journal.append(TransferJournal.Event.sendPeer(xferRequest.getCdkey()+":"+xferRequest.getCharacterName(), syncId));
+
+        if(startResults.isAlreadyPresent()) {
+            // the peer already has these exact bytes, go straight to verify
+            log.info("Peer already holds the bic for syncId {}, skipping upload",syncId);
+            xferStatus.setProgress(1000);
+        } else {
+            log.debug("Before FTPS");
+            send(payload, syncId, peer, breaker, xferStatus);
+            log.debug("After FTPS");
+        }
 
         int errorCode = xferStatus.getStatusCode();
         // aborted
         if(errorCode > 299) {
             // call peer /v1/sync/cancel
-            RequestStatus requestStatus;
-            try {
-                requestStatus = callRestService(baseUrl, HttpMethod.POST, "/v1/sync/cancel", requestData, RequestStatus.class);
-            } catch(RestClientResponseException e) {
-                log.info("call to /v1/sync/cancel failed: see the restTemplate.exchange() error");
-                requestStatus = new RequestStatus(500, "Problem with transfer. Please contact the staff");
-            }
+            Timer.Sample cancelSample = metrics.start();
+            RequestStatus requestStatus = callCancel(baseUrl, requestData);
+            metrics.sendPhase(cancelSample, TransferMetrics.CANCEL, destination);
             if(requestStatus.getStatusCode() > 299) {
                 xferStatus.setStatusCode(requestStatus.getStatusCode());
                 xferStatus.setErrorMessage(requestStatus.getErrorMessage());
@@ -175,12 +197,15 @@ public class SendClient {
         if(errorCode < 201) {
             // calls peer /v1/sync/validate
             RequestStatus requestStatus;
+            Timer.Sample verifySample = metrics.start();
             try {
-                requestStatus = callRestService(baseUrl, HttpMethod.POST, "/v1/sync/verify", requestData, RequestStatus.class);
+                requestStatus = callPeer(verifyRetry, "verify", true, breaker,
+                    () -> callRestService(baseUrl, HttpMethod.POST, "/v1/sync/verify", requestData, RequestStatus.class));
             } catch(RestClientResponseException e) {
                 log.info("call to /v1/sync/verify failed: see the restTemplate.exchange() error");
                 requestStatus = new RequestStatus(500, "Problem with transfer. Please contact the staff");
             }
+            metrics.sendPhase(verifySample, TransferMetrics.VERIFY, destination);
             if(requestStatus.getStatusCode() > 299) {
                 xferStatus.setStatusCode(requestStatus.getStatusCode());
                 xferStatus.setErrorMessage(requestStatus.getErrorMessage());
@@ -194,9 +219,74 @@ public class SendClient {
         busy = false;
     }
 
+    /**
+     * Cancels a transfer this process started on the peer before it restarted
+     */
+    public void cancelPeer(PeerInfo peer, String syncId) {
+        RequestData requestData = new RequestData();
+        requestData.setRequestId(UUID.fromString(syncId));
+
+        RequestStatus requestStatus = callCancel("https://"+peer.getHost()+":"+peer.getRestPort(), requestData);
+        if(requestStatus.getStatusCode() > 299) {
+            log.error("Cancel of interrupted transfer syncId {} failed: {}",syncId,requestStatus.getErrorMessage());
+        } else {
+            log.info("Cancelled interrupted transfer syncId {}",syncId);
+        }
+    }
+
+    /**
+     * Makes the REST call, retrying server side and connection failures as
+     * the policy allows.  The outcome is reported to the peer's breaker.
+     * @param idempotent false only retries calls that never reached the peer
+     */
+    private <T> T callPeer(RetryPolicy policy, String phase, boolean idempotent, CircuitBreaker breaker, Supplier<T> call) {
+        for(int attempt = 1; ; attempt++) {
+            try {
+                T result = call.get();
+                breaker.recordSuccess();
+                return result;
+            } catch(RestClientResponseException ex) {
+                if(!ex.getStatusCode().is5xxServerError()) {
+                    // the peer answered, it's up
+                    breaker.recordSuccess();
+                    throw ex;
+                }
+                boolean retryable = idempotent || ex instanceof NotSentException;
+                if(!retryable || aborted || attempt >= policy.getAttempts() || !backoff(policy, attempt, phase)) {
+                    breaker.recordFailure();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sleeps before retry number attempt
+     * @return false if interrupted, give up
+     */
+    private boolean backoff(RetryPolicy policy, int attempt, String phase) {
+        long delay = policy.backoffMillis(attempt);
+        log.info("Retrying {} in {}ms (retry {} of {})",phase,delay,attempt,policy.getAttempts()-1);
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private RequestStatus callCancel(String baseUrl, RequestData requestData) {
+        try {
+            return callRestService(baseUrl, HttpMethod.POST, "/v1/sync/cancel", requestData, RequestStatus.class);
+        } catch(RestClientResponseException e) {
+            log.info("call to /v1/sync/cancel failed: see the restTemplate.exchange() error");
+            return new RequestStatus(500, "Problem with transfer. Please contact the staff");
+        }
+    }
+
     private <S,T> T callRestService(String baseUrl, HttpMethod method, String uri, S body, Class<T> clazz)
     {
-        RestTemplate restTemplate = restTemplateBuilder.build();
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
@@ -210,6 +300,9 @@ public class SendClient {
             if(logRestExceptions) {
                 log.debug("CallRestService() exception: ",ex);
             }
+            if(isNotSent(ex)) {
+                throw new NotSentException();
+            }
             throw new RestClientResponseException(
                 "Issue between server and destination, please contact the staff",
                 HttpStatusCode.valueOf(500),
@@ -232,47 +325,125 @@ public class SendClient {
         return response.getBody();
     }
 
-    public void send(File sourceFile, String syncId, PeerInfo peer, TransferStatus xferStatus) {
+    /**
+     * The request failed before it was written, connecting or in the handshake
+     */
+    private static boolean isNotSent(Throwable ex) {
+        for(Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if( cause instanceof ConnectException
+                || cause instanceof ConnectTimeoutException
+                || cause instanceof NoRouteToHostException
+                || cause instanceof UnknownHostException
+                || cause instanceof SSLHandshakeException)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A call that never reached the peer.  Reported as a 500 like any other
+     * connection failure, but safe to retry even when the call isn't idempotent.
+     */
+    private static class NotSentException extends RestClientResponseException {
+        private static final long serialVersionUID = 1L;
+
+        NotSentException() {
+            super(  "Issue between server and destination, please contact the staff",
+                    HttpStatusCode.valueOf(500),
+                    "Internal Server Error",
+                    null,
+                    null,
+                    null);
+        }
+    }
 
-        OutputStream destinationOS = null;
+    public void send(byte[] payload, String syncId, PeerInfo peer, CircuitBreaker breaker, TransferStatus xferStatus) {
+        // a dropped connection is retried on a fresh session, picking up where the peer's copy ends
+        for(int attempt = 1; ; attempt++) {
+            boolean canRetry = attempt < uploadRetry.getAttempts();
+            if(!upload(payload, syncId, peer, breaker, xferStatus, attempt > 1, canRetry)) {
+                return;
+            }
+            if(!backoff(uploadRetry, attempt, "upload for syncId "+syncId)) {
+                xferStatus.setStatusCode(500);
+                xferStatus.setErrorMessage("There was an error with the transfer, please contact the staff");
+                return;
+            }
+        }
+    }
 
+    /**
+     * One STOR of the payload
+     * @param resume ask the peer how much it has and only send the rest
+     * @param canRetry a failure part way through may be retried
+     * @param breaker told about failures that mean the peer's FTPS server is unreachable or unwilling
+     * @return true if the upload failed and should be retried
+     */
+    private boolean upload(byte[] payload, String syncId, PeerInfo peer, CircuitBreaker breaker, TransferStatus xferStatus, boolean resume, boolean canRetry) {
+
+        PeerFTPSClient ftpsClient;
+        // only pays for connect and login when the pool has no idle session
+        Timer.Sample connectSample = metrics.start();
         try {
-            log.debug("FTPS client connecting to {}:{}",peer.getHost(),peer.getFtpsPort());
-            ftpsClient.connect(peer.getHost(),peer.getFtpsPort());
-
-            // dummy username and password, the certificate is the authenticator
-            if(ftpsClient.login("plugh","cretin")) {
-                ftpsClient.execPBSZ(0);
-                ftpsClient.execPROT("P");
-                ftpsClient.enterLocalPassiveMode();
-                ftpsClient.setFileTransferMode(FTP.STREAM_TRANSFER_MODE);
-                ftpsClient.setFileType(FTP.BINARY_FILE_TYPE);
-
-                // destination name will be the UUID stored in syncId
-                destinationOS = ftpsClient.storeFileStream(syncId);
+            // a logged in session, usually left over from the last transfer to this peer
+            ftpsClient = sessionPool.borrow(peer);
+            metrics.sendPhase(connectSample, TransferMetrics.CONNECT, destination);
+        } catch(Exception ex) {
+            log.error("Could not open an FTPS session to {}:{} for syncId {}: {}",peer.getHost(),peer.getFtpsPort(),syncId,ex.getMessage());
+            if(logFtpsException) {
+                log.debug("FTPS exception: ",ex);
+            }
+            // waiting too long for one of our own pooled sessions says nothing about the peer
+            if(!isPoolExhausted(ex)) {
+                breaker.recordFailure();
             }
+            xferStatus.setStatusCode(500);
+            xferStatus.setErrorMessage("There was an error with the transfer, please contact the staff");
+            return false;
+        }
+
+        // only sessions that finished cleanly go back into the pool
+        boolean reusable = false;
+        Deflater deflater = null;
+        Timer.Sample uploadSample = metrics.start();
+        long uploadStart = System.nanoTime();
+        int offset = 0;
+        int transferred = 0;
+
+        try {
+            int length = payload.length;
+            offset = resume ? resumeOffset(ftpsClient, syncId, length) : 0;
+            transferred = offset;
+            ftpsClient.setRestartOffset(transferred);
+
+            // destination name will be the UUID stored in syncId
+            OutputStream destinationOS = ftpsClient.storeFileStream(syncId);
 
             if(destinationOS == null) {
-                log.error("Peer's FTPServer rejected the connection for syncId: "+syncId);
+                log.error("Peer's FTPServer rejected the upload for syncId: {} reply: {}",syncId,ftpsClient.getReplyString());
+                if(isUnavailableReply(ftpsClient.getReplyCode())) {
+                    breaker.recordFailure();
+                }
                 xferStatus.setStatusCode(500);
                 xferStatus.setErrorMessage("There was an error with the transfer, please contact the staff");
-                return;
+                return false;
             }
 
-            FileInputStream sourceIS = new FileInputStream(sourceFile);
-
-            long length = sourceFile.length();
-            int read = 0;
-            long transferred = 0;
-            byte[] bytesIn = new byte[4096];
+            if(ftpsClient.isDeflate()) {
+                // MODE Z, the peer inflates as it writes so it still sees the original bytes
+                deflater = new Deflater(compressionLevel);
+                destinationOS = new DeflaterOutputStream(destinationOS, deflater, CHUNK_SIZE);
+            }
 
-            while (!aborted && (read = sourceIS.read(bytesIn)) != -1) {
-                destinationOS.write(bytesIn, 0, read);
-                transferred += read;
+            while (!aborted && transferred < length) {
+                int chunk = Math.min(CHUNK_SIZE, length - transferred);
+                destinationOS.write(payload, transferred, chunk);
+                transferred += chunk;
                 // progress is percentage.  It's scaled by 1000 to give one decimal of precision
-                xferStatus.setProgress((int)((transferred*1000)/length));
+                xferStatus.setProgress((int)((transferred*1000L)/length));
             }
-            sourceIS.close();
             destinationOS.flush();
             destinationOS.close();
 
@@ -284,6 +455,8 @@ public class SendClient {
             } else {
                 if( ftpsClient.completePendingCommand()) {
                     // success!
+                    reusable = true;
+                    metrics.sendPhase(uploadSample, TransferMetrics.UPLOAD, destination);
                 } else {
                     // ruh-roh... is there a way to recover? or get the error?
                     log.error("Transfer for syncId "+syncId+" did not finalize");
@@ -293,23 +466,68 @@ public class SendClient {
             }
 
         } catch(Exception ex) {
+            if(canRetry && !aborted && ex instanceof IOException) {
+                log.warn("Upload for syncId {} was interrupted: {}", syncId, ex.getMessage());
+                return true;
+            }
             log.error("Transfer for syncId {} failed: {}", syncId, ex.getMessage());
             if(logFtpsException) {
                 log.debug("FTPS exception: ",ex);
             }
+            if(!aborted && ex instanceof IOException) {
+                // the connection failed and there are no retries left
+                breaker.recordFailure();
+            }
             xferStatus.setStatusCode(500);
             xferStatus.setErrorMessage(ex.getMessage());
         } finally {
-            log.debug("Finally called");
-            try {
-                if (ftpsClient.isConnected()) {
-                    ftpsClient.logout();
-                    ftpsClient.disconnect();
-                }
-            } catch(IOException ex) {
-                log.error("Exception thrown during finally after transfer for syncId {}",syncId,ex);
+            // what made it out, even if the upload failed part way
+            metrics.sendBytes(destination, transferred - offset, System.nanoTime() - uploadStart);
+            if(deflater != null) {
+                deflater.end();
+            }
+            if(reusable) {
+                sessionPool.release(peer, ftpsClient);
+            } else {
+                sessionPool.invalidate(peer, ftpsClient);
             }
         }
 
+        return false;
+    }
+
+    /**
+     * The pool timed out waiting for a free session, nothing went wrong talking to the peer
+     */
+    private static boolean isPoolExhausted(Exception ex) {
+        return ex instanceof NoSuchElementException && ex.getCause() == null;
+    }
+
+    /**
+     * STOR replies that mean the peer's server can't take uploads at all, as
+     * opposed to refusing this one file
+     */
+    private static boolean isUnavailableReply(int replyCode) {
+        return replyCode == FTPReply.SERVICE_NOT_AVAILABLE
+            || replyCode == FTPReply.CANNOT_OPEN_DATA_CONNECTION
+            || replyCode == FTPReply.TRANSFER_ABORTED;
+    }
+
+    /**
+     * How many bytes of the upload the peer already holds.  Anything it can't
+     * tell us starts the upload over.
+     */
+    private int resumeOffset(PeerFTPSClient ftpsClient, String syncId, int length) throws IOException {
+        String size = ftpsClient.getSize(syncId);
+        if(size == null) {
+            log.debug("Peer has no size for syncId {}: {}",syncId,ftpsClient.getReplyString());
+            return 0;
+        }
+        try {
+            long offset = Long.parseLong(size.trim());
+            return offset > length ? 0 : (int) offset;
+        } catch(NumberFormatException ex) {
+            return 0;
+        }
     }
 }
@@ -8,75 +8,355 @@ import org.apache.commons.pool2.impl.GenericObjectPool;
 
 import org.avlis.vaultsync.config.PeerInfo;
 import org.avlis.vaultsync.config.SenderConfig;
+import org.avlis.vaultsync.models.QueueStatus;
 import org.avlis.vaultsync.models.TransferRequest;
+import org.avlis.vaultsync.models.TransferStatus;
 import org.avlis.vaultsync.util.SendClientPoolFactory;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Runs outbound transfers.  Each destination has its own queue and
+ * concurrency cap and free slots are handed out round robin across the
+ * destinations, so a slow or unreachable peer can only hold its own share
+ * of the workers.
+ */
 @Slf4j
 @Component
-public class SendClientManager {
+public class SendClientManager implements DisposableBean {
 
-    ThreadPoolExecutor executor;
+    ExecutorService executor;
     GenericObjectPool<SendClient> objectPool;
+    TransferJournal journal;
+    TransferMetrics metrics;
 
     Map<String,SendClient> clientMap = Collections.synchronizedMap(new HashMap<>());
 
+    int maxInFlight;
+    int maxInFlightPerPeer;
+    int maxQueued;
+
+    // guarded by this
+    LinkedHashMap<String,PeerQueue> peerQueues = new LinkedHashMap<>();
+    int running = 0;
+    int queued = 0;
+    // where the next round robin pass starts
+    int cursor = 0;
+
+    // moving average of how long a transfer lifecycle takes, seeds the wait estimates
+    volatile double avgTransferMillis = 2000;
+
+    @AllArgsConstructor
+    private static class Job {
+        final String charId;
+        final PeerInfo peerInfo;
+        final Path filePath;
+        final TransferRequest request;
+    }
+
+    private static class PeerQueue {
+        final String destination;
+        final ArrayDeque<Job> jobs = new ArrayDeque<>();
+        int maxInFlight;
+        int inFlight = 0;
+
+        PeerQueue(String destination, int maxInFlight) {
+            this.destination = destination;
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
     @Autowired
     public SendClientManager(   SenderConfig config,
-                                SendClientPoolFactory factory)
+                                SendClientPoolFactory factory,
+                                TransferJournal journal,
+                                TransferMetrics metrics)
     {
-        int maxInFlight = config.getMaxInFlight();
+        this.journal = journal;
+        this.metrics = metrics;
+        maxInFlight = config.getMaxInFlight();
+        maxInFlightPerPeer = config.getMaxInFlightPerPeer();
+        maxQueued = config.getMaxQueued();
 
-        // ThreadPool with up to 10 threads and an unbounded queue
-        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxInFlight);
-        executor.setKeepAliveTime(2000, TimeUnit.MILLISECONDS);
-        executor.allowsCoreThreadTimeOut();
+        // The dispatcher never hands out more than maxInFlight transfers so the
+        // executor only supplies threads, it never queues.
+        if("virtual".equalsIgnoreCase(config.getExecutionMode())) {
+            executor = makeVirtualThreadExecutor();
+        } else {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxInFlight);
+            pool.setKeepAliveTime(2000, TimeUnit.MILLISECONDS);
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
 
         // SendClient ObjectPool
         objectPool = new GenericObjectPool<>(factory);
         objectPool.setMaxTotal(maxInFlight);
+
+        registerGauges(metrics.getRegistry());
     }
 
-    public void scheduleTransfer(String charId, PeerInfo peerInfo, Path filePath, TransferRequest request) {
+    private void registerGauges(MeterRegistry registry) {
+        // thread counts, the executor itself never queues
+        executor = ExecutorServiceMetrics.monitor(registry, executor, "vaultsync.send");
+        Gauge.builder("vaultsync.send.queued", this, m -> m.getQueued())
+            .description("Transfers waiting for a slot")
+            .register(registry);
+        Gauge.builder("vaultsync.send.inflight", this, m -> m.getRunning())
+            .description("Transfers running")
+            .register(registry);
+        Gauge.builder("vaultsync.send.clients.active", objectPool, p -> p.getNumActive())
+            .register(registry);
+        Gauge.builder("vaultsync.send.clients.idle", objectPool, p -> p.getNumIdle())
+            .register(registry);
+        Gauge.builder("vaultsync.send.clients.max", objectPool, p -> p.getMaxTotal())
+            .register(registry);
+    }
 
-        Runnable task = () -> {
-            SendClient sendClient = null;
+    private synchronized int getQueued() {
+        return queued;
+    }
 
-            // get a SendClient instance
-            try {
-                sendClient = objectPool.borrowObject();
-            } catch (Exception e) {
-                log.error("Transfer "+charId+" could not be processed due to an ObjectPool exception:",e);
+    private synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Virtual threads arrived in Java 21 and this builds for 17, so look the
+     * factory up at runtime.
+     */
+    private static ExecutorService makeVirtualThreadExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+            log.info("Transfers will run on virtual threads");
+            return executor;
+        } catch(ReflectiveOperationException ex) {
+            log.warn("Virtual threads need Java 21 or newer.  Transfers will run on an unbounded platform thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Queues the transfer unless the queue is full
+     * @return false if the transfer was rejected, see getRetryAfterSeconds()
+     */
+    public boolean scheduleTransfer(String charId, PeerInfo peerInfo, Path filePath, TransferRequest request) {
+        synchronized(this) {
+            if(queued >= maxQueued) {
+                return false;
+            }
+            peerQueue(request.getDestination(), peerInfo).jobs.add(new Job(charId, peerInfo, filePath, request));
+            queued++;
+        }
+        dispatch();
+        return true;
+    }
+
+    private PeerQueue peerQueue(String destination, PeerInfo peerInfo) {
+        Integer peerMax = peerInfo.getMaxInFlight();
+        int cap = peerMax != null ? peerMax : maxInFlightPerPeer;
+
+        PeerQueue peerQueue = peerQueues.computeIfAbsent(destination, k -> {
+            PeerQueue created = new PeerQueue(k, cap);
+            registerPeerGauges(created);
+            return created;
+        });
+        // picks up a changed limit
+        peerQueue.maxInFlight = cap;
+        return peerQueue;
+    }
+
+    private void registerPeerGauges(PeerQueue peerQueue) {
+        MeterRegistry registry = metrics.getRegistry();
+        // read under the manager's lock like everything else in PeerQueue
+        Gauge.builder("vaultsync.send.peer.queued", peerQueue, q -> { synchronized(this) { return q.jobs.size(); } })
+            .tag("destination", peerQueue.destination)
+            .register(registry);
+        Gauge.builder("vaultsync.send.peer.inflight", peerQueue, q -> { synchronized(this) { return q.inFlight; } })
+            .tag("destination", peerQueue.destination)
+            .register(registry);
+    }
+
+    /**
+     * Hands free slots to waiting transfers, one peer at a time
+     */
+    private synchronized void dispatch() {
+        while(running < maxInFlight && queued > 0) {
+            PeerQueue next = nextReadyPeer();
+            if(next == null) {
+                // everything left is waiting on a peer that's at its cap
                 return;
             }
+            Job job = next.jobs.poll();
+            queued--;
+            next.inFlight++;
+            running++;
+            executor.submit(() -> run(next, job));
+        }
+    }
+
+    private PeerQueue nextReadyPeer() {
+        List<PeerQueue> peers = new ArrayList<>(peerQueues.values());
+        for(int i = 0; i < peers.size(); i++) {
+            int index = (cursor + i) % peers.size();
+            PeerQueue peerQueue = peers.get(index);
+            if(!peerQueue.jobs.isEmpty() && peerQueue.inFlight < peerQueue.maxInFlight) {
+                cursor = index + 1;
+                return peerQueue;
+            }
+        }
+        return null;
+    }
 
-            // track the client just in case we need to abort the transfer
-            synchronized(clientMap) {
-                clientMap.put(charId, sendClient);
+    private void run(PeerQueue peerQueue, Job job) {
+        try {
+            runLifecycle(job);
+        } finally {
+            synchronized(this) {
+                peerQueue.inFlight--;
+                running--;
             }
+            dispatch();
+        }
+    }
+
+    private void runLifecycle(Job job) {
+        String charId = job.charId;
+        SendClient sendClient = null;
+        long startMillis = System.currentTimeMillis();
+
+        // get a SendClient instance
+        try {
+            sendClient = objectPool.borrowObject();
+        } catch (Exception e) {
+            log.error("Transfer "+charId+" could not be processed due to an ObjectPool exception:",e);
+            return;
+        }
 
-            // run the peer /start -> FTPS -> /cancel or /verify lifecycle
-            sendClient.startPeer(filePath.toFile(), peerInfo, request);
+        // track the client just in case we need to abort the transfer
+        synchronized(clientMap) {
+            clientMap.put(charId, sendClient);
+        }
+
+        // run the peer /start -> FTPS -> /cancel or /verify lifecycle
+        sendClient.startPeer(job.filePath.toFile(), job.peerInfo, job.request);
 
-            // untrack the client
-            synchronized(clientMap) {
-                clientMap.remove(charId);
+        // untrack the client
+        synchronized(clientMap) {
+            clientMap.remove(charId);
+        }
+
+        // return the SendClient instance
+        objectPool.returnObject(sendClient);
+
+        TransferStatus status = job.request.getStatus();
+        journal.append(TransferJournal.Event.sendEnd(charId, status.getStatusCode(), status.getErrorMessage()));
+
+        long elapsed = System.currentTimeMillis() - startMillis;
+        metrics.sendTransfer(elapsed, job.request.getDestination(), status.getStatusCode());
+        avgTransferMillis = avgTransferMillis * 0.8 + elapsed * 0.2;
+    }
+
+    /**
+     * 1 based position of the transfer in its destination's queue, 0 if it isn't waiting
+     */
+    public synchronized int getQueuePosition(String charId, String destination) {
+        PeerQueue peerQueue = peerQueues.get(destination);
+        if(peerQueue == null) {
+            return 0;
+        }
+        int position = 1;
+        for(Job job : peerQueue.jobs) {
+            if(job.charId.equals(charId)) {
+                return position;
             }
+            position++;
+        }
+        return 0;
+    }
 
-            // return the SendClient instance
-            objectPool.returnObject(sendClient);
-        };
+    /**
+     * Rough wall clock time the transfer at the queue position should start
+     */
+    public synchronized long getEstimatedStartMillis(String destination, int position) {
+        PeerQueue peerQueue = peerQueues.get(destination);
+        if(position < 1 || peerQueue == null) {
+            return 0;
+        }
+        // each "round" of the peer's slots takes about one average transfer
+        int slots = Math.max(1, Math.min(peerQueue.maxInFlight, maxInFlight));
+        long rounds = (position + slots - 1) / slots;
+        return System.currentTimeMillis() + (long)(rounds * avgTransferMillis);
+    }
 
-        // queue the task for execution
-        executor.submit(task);
+    /**
+     * How long a rejected caller should wait before trying again
+     */
+    public int getRetryAfterSeconds() {
+        int waiting;
+        synchronized(this) {
+            waiting = queued + 1;
+        }
+        long rounds = (waiting + maxInFlight - 1) / maxInFlight;
+        long waitMillis = (long)(rounds * avgTransferMillis);
+        return (int) Math.max(1, (waitMillis + 999) / 1000);
+    }
+
+    /**
+     * Queue depth and concurrency for each destination we've sent to
+     */
+    public synchronized List<QueueStatus> getQueueStatus() {
+        List<QueueStatus> results = new ArrayList<>();
+        for(PeerQueue peerQueue : peerQueues.values()) {
+            results.add(new QueueStatus(peerQueue.destination, peerQueue.jobs.size(), peerQueue.inFlight, peerQueue.maxInFlight));
+        }
+        return results;
+    }
+
+    /**
+     * Cancels a transfer on the peer that a previous run of this process
+     * started but never finished
+     */
+    public void cancelRemote(PeerInfo peerInfo, String syncId) {
+        executor.submit(() -> {
+            SendClient sendClient;
+            try {
+                sendClient = objectPool.borrowObject();
+            } catch (Exception e) {
+                log.error("Could not cancel syncId "+syncId+" due to an ObjectPool exception:",e);
+                return;
+            }
+            try {
+                sendClient.cancelPeer(peerInfo, syncId);
+            } finally {
+                objectPool.returnObject(sendClient);
+            }
+        });
     }
 
     public void abort(String charId) {
 
+        // not started yet, just drop it from the queue
+        synchronized(this) {
+            for(PeerQueue peerQueue : peerQueues.values()) {
+                if(peerQueue.jobs.removeIf(job -> job.charId.equals(charId))) {
+                    queued--;
+                    log.info("Transfer "+charId+" was aborted before it started");
+                    return;
+                }
+            }
+        }
+
         SendClient sendClient;
         synchronized(clientMap) {
             sendClient = clientMap.get(charId);
@@ -91,4 +371,9 @@ public class SendClientManager {
         }
     }
 
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        objectPool.close();
+    }
 }
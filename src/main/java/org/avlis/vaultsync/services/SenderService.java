@@ -6,6 +6,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.avlis.vaultsync.config.*;
 import org.avlis.vaultsync.models.*;
+import org.avlis.vaultsync.util.CircuitBreaker;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -20,20 +21,26 @@ public class SenderService {
 
     private PeerConfig peerConfig;
     private SendClientManager sendClientManager;
+    private TransferJournal journal;
+    private PeerCircuitBreakers breakers;
     
     boolean vaultByCdkey;
     String vaultPath;
 
-    private Map<String, TransferRequest> transfers;
+    private ExpiringMap<String, TransferRequest> transfers;
 
     @Autowired
     SenderService(  CommonConfig directoryConfig,
                     PeerConfig peerConfig,
                     ReceiverConfig receiverConfig,
-                    SendClientManager sendClientManager)
+                    SendClientManager sendClientManager,
+                    TransferJournal journal,
+                    PeerCircuitBreakers breakers)
     {
+        this.breakers = breakers;
         this.peerConfig = peerConfig;
         this.sendClientManager = sendClientManager;
+        this.journal = journal;
         this.vaultByCdkey = receiverConfig.getVaultByCdkey();
         this.vaultPath = directoryConfig.getVaultPath();
 
@@ -43,8 +50,69 @@ public class SenderService {
 
         transfers = ExpiringMap.builder()
             .expiration(receiverConfig.getSyncTimeout(), TimeUnit.SECONDS)
+            .variableExpiration()
             .expirationListener(l)
             .build();
+
+        recoverTransfers(TimeUnit.SECONDS.toMillis(receiverConfig.getSyncTimeout()));
+    }
+
+    /**
+     * Puts back the transfers from before the restart so the game server can
+     * still get their status.  Ones that hadn't finished can't be picked back
+     * up, they're reported as failed and cancelled on the peer.
+     */
+    private void recoverTransfers(long timeoutMillis) {
+        Map<String, TransferRequest> recovered = new LinkedHashMap<>();
+        Map<String, String> syncIds = new HashMap<>();
+        for(TransferJournal.Event event : journal.getRecovered()) {
+            String charId = event.getKey();
+            switch(event.getType()) {
+                case TransferJournal.SEND_START:
+                    TransferRequest request = new TransferRequest(event.getTransfer());
+                    request.setReceivedMillis(event.getTime());
+                    recovered.put(charId, request);
+                    break;
+                case TransferJournal.SEND_PEER:
+                    syncIds.put(charId, event.getSyncId());
+                    break;
+                case TransferJournal.SEND_END:
+                    if(recovered.containsKey(charId)) {
+                        TransferStatus status = recovered.get(charId).getStatus();
+                        status.setStatusCode(event.getStatusCode());
+                        status.setErrorMessage(event.getErrorMessage());
+                        status.setProgress(event.getStatusCode() == 200 ? 1000 : 0);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        for(Map.Entry<String, TransferRequest> entry : recovered.entrySet()) {
+            String charId = entry.getKey();
+            TransferRequest request = entry.getValue();
+            long remaining = timeoutMillis - (System.currentTimeMillis() - request.getReceivedMillis());
+            if(remaining <= 0) {
+                continue;
+            }
+
+            TransferStatus status = request.getStatus();
+            if(status.getStatusCode() < 200) {
+                status.setStatusCode(503);
+                status.setErrorMessage("The transfer was interrupted, please try again");
+                journal.append(TransferJournal.Event.sendEnd(charId, status.getStatusCode(), status.getErrorMessage()));
+
+                // release the character on the peer so the retry isn't refused
+                PeerInfo peerInfo = peerConfig.getPeers().get(request.getDestination());
+                String syncId = syncIds.get(charId);
+                if(peerInfo != null && syncId != null) {
+                    sendClientManager.cancelRemote(peerInfo, syncId);
+                }
+                log.warn("Transfer "+charId+" to "+request.getDestination()+" was interrupted by a restart");
+            }
+            transfers.put(charId, request, remaining, TimeUnit.MILLISECONDS);
+        }
     }
 
     public RequestStatus addRequest(TransferData requestData) {
@@ -85,11 +153,30 @@ public class SenderService {
             return new RequestStatus( 404, destination+" is not a valid destination, please contact the staff");
         }
 
+        // fail fast while the peer is down so the game can keep the player here
+        CircuitBreaker breaker = breakers.get(peerInfo);
+        if(!breaker.isAvailable()) {
+            int retryAfter = breaker.getRetryAfterSeconds();
+            log.warn("Peer "+destination+" is down, turned away "+message+" retry after "+retryAfter+"s");
+            return new RequestStatus(503, destination+" is not responding, please try again later", retryAfter);
+        }
+
         TransferRequest request = new TransferRequest(requestData);
 
+        // ExpiringMap keeps the old value when the new one equals() it and
+        // TransferData's equals only compares the request fields.  A repeat of
+        // a finished transfer would leave the old status in place.
+        transfers.remove(charId);
         transfers.put(charId,request);
-
-        sendClientManager.scheduleTransfer(charId, peerInfo, filePath, request);
+        journal.append(TransferJournal.Event.sendStart(charId, request));
+
+        if(!sendClientManager.scheduleTransfer(charId, peerInfo, filePath, request)) {
+            transfers.remove(charId);
+            journal.append(TransferJournal.Event.sendRemoved(charId));
+            int retryAfter = sendClientManager.getRetryAfterSeconds();
+            log.warn("Transfer queue is full, turned away "+message+" retry after "+retryAfter+"s");
+            return new RequestStatus(503, "Too many transfers in progress, please try again shortly", retryAfter);
+        }
 
         log.info("Scheduled transfer request to "+destination+" for cdkey: "+cdkey+" login: "+login+" character: "+charName);
 
@@ -109,6 +196,11 @@ public class SenderService {
         }
 
         TransferStatus status = request.getStatus();
+        if(status.getStatusCode() < 200) {
+            int position = sendClientManager.getQueuePosition(charId, transferDestination);
+            status.setQueuePosition(position);
+            status.setEstimatedStart(sendClientManager.getEstimatedStartMillis(transferDestination, position));
+        }
         if(status.getStatusCode() == 200) {
             log.info("Send request "+charId+" has completed");
         } else
@@ -134,6 +226,7 @@ public class SenderService {
         }
 
         transfers.remove(charId);
+        journal.append(TransferJournal.Event.sendRemoved(charId));
 
         TransferStatus status = request.getStatus();
         if(status.getStatusCode() != 200) {
@@ -145,6 +238,20 @@ public class SenderService {
         return new RequestStatus(200, "");
     }
 
+    /**
+     * Whether each configured peer is currently accepting transfers
+     */
+    public List<PeerState> getPeerStates() {
+        List<PeerState> results = new ArrayList<>();
+        for(Map.Entry<String, PeerInfo> entry : peerConfig.getPeers().entrySet()) {
+            PeerInfo peerInfo = entry.getValue();
+            CircuitBreaker breaker = breakers.get(peerInfo);
+            results.add(new PeerState(entry.getKey(), peerInfo.getEnabled(), breaker.getState().name(),
+                breaker.getFailures(), breaker.getRetryAfterSeconds()));
+        }
+        return results;
+    }
+
     private boolean hasInflightTransfer(String charId) {
         TransferRequest transferRequest = transfers.get(charId);
         if(transferRequest == null)
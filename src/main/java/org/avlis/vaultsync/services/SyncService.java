@@ -16,10 +16,10 @@ import org.avlis.vaultsync.models.*;
 import org.avlis.vaultsync.util.*;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DataAccessException;
-import org.springframework.jdbc.core.namedparam.*;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.core.instrument.Timer;
+
 @Slf4j
 @Component
 public class SyncService {
@@ -27,22 +27,34 @@ public class SyncService {
     private CommonConfig commonConfig;
     private ReceiverConfig receiverConfig;
     private ChecksumUtil checksumUtil;
-    private NamedParameterJdbcTemplate jdbcTemplate;
+    private UploadChecksumRegistry uploadChecksums;
+    private VaultChecksumIndex vaultChecksums;
+    private ValidationService validationService;
+    private TransferJournal journal;
+    private TransferMetrics metrics;
 
     // NOTE: probably need a thread to periodically clean these out
-    private Map<UUID, SyncRequest> transfers;
+    private ExpiringMap<UUID, SyncRequest> transfers;
     private Map<String, UUID> uuidByCharId = new HashMap<>();
 
     @Autowired
     public SyncService( CommonConfig commonConfig,
                         ReceiverConfig receiverConfig,
                         ChecksumUtil checksumUtil,
-                        NamedParameterJdbcTemplate jdbcTemplate)
+                        UploadChecksumRegistry uploadChecksums,
+                        VaultChecksumIndex vaultChecksums,
+                        ValidationService validationService,
+                        TransferJournal journal,
+                        TransferMetrics metrics)
     {
         this.commonConfig = commonConfig;
         this.receiverConfig = receiverConfig;
         this.checksumUtil = checksumUtil;
-        this.jdbcTemplate = jdbcTemplate;
+        this.uploadChecksums = uploadChecksums;
+        this.vaultChecksums = vaultChecksums;
+        this.validationService = validationService;
+        this.journal = journal;
+        this.metrics = metrics;
 
         // when the transfer request is evicted also evict the reverse lookup
         ExpirationListener<UUID, SyncRequest> l = (key,req) -> {
@@ -52,8 +64,66 @@ public class SyncService {
         // evict transfers after duration
         transfers = ExpiringMap.builder()
             .expiration(receiverConfig.getSyncTimeout(), TimeUnit.SECONDS)
+            .variableExpiration()
             .expirationListener(l)
             .build();
+
+        recoverTransfers();
+        removeOrphanUploads();
+    }
+
+    /**
+     * Puts back the transfers that were in flight when we last stopped.  They
+     * keep their original expiration.
+     */
+    private void recoverTransfers() {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(receiverConfig.getSyncTimeout());
+        for(TransferJournal.Event event : journal.getRecovered()) {
+            if(!TransferJournal.SYNC_START.equals(event.getType())) {
+                continue;
+            }
+            long remaining = timeoutMillis - (System.currentTimeMillis() - event.getTime());
+            if(remaining <= 0) {
+                continue;
+            }
+            UUID syncId = UUID.fromString(event.getKey());
+            SyncRequest request = new SyncRequest(event.getSync(), event.getSender());
+            request.setReceivedMillis(event.getTime());
+            request.setAlreadyPresent(Boolean.TRUE.equals(event.getAlreadyPresent()));
+
+            uuidByCharId.put(request.getCdkey()+":"+request.getCharacterName(), syncId);
+            transfers.put(syncId, request, remaining, TimeUnit.MILLISECONDS);
+            log.info("Recovered transfer request from: "+request.getSender()+" for character: "+request.getCharacterName()+" syncId: "+syncId);
+        }
+    }
+
+    /**
+     * Uploads are named after their syncId.  Any that don't belong to a known
+     * transfer were left behind by a restart and nobody will verify them.
+     */
+    private void removeOrphanUploads() {
+        Path homeDirs = Paths.get(commonConfig.getFtpHomeDirs());
+        try(DirectoryStream<Path> senders = Files.newDirectoryStream(homeDirs, Files::isDirectory)) {
+            for(Path senderDir : senders) {
+                try(DirectoryStream<Path> uploads = Files.newDirectoryStream(senderDir, Files::isRegularFile)) {
+                    for(Path upload : uploads) {
+                        UUID syncId;
+                        try {
+                            syncId = UUID.fromString(upload.getFileName().toString());
+                        } catch(IllegalArgumentException ex) {
+                            // not ours
+                            continue;
+                        }
+                        if(!transfers.containsKey(syncId)) {
+                            log.info("Removing orphaned upload {}",upload);
+                            Files.deleteIfExists(upload);
+                        }
+                    }
+                }
+            }
+        } catch(IOException ex) {
+            log.error("Could not clean up orphaned uploads in {}: {}",homeDirs,ex.getMessage());
+        }
     }
 
     /**
@@ -82,6 +152,14 @@ public class SyncService {
         String charName = requestData.getCharacterName();
         String charId = cdkey+":"+charName;
 
+        // the sender retrying a start whose reply it didn't get, hand back the same syncId
+        SyncRequest pending = findRetriedStart(charId, requestData, sender);
+        if(pending != null) {
+            UUID syncId = uuidByCharId.get(charId);
+            log.info("Repeated transfer request from: "+sender+" for cdkey: "+cdkey+" login: "+login+" character: "+charName+" syncId: "+syncId);
+            return new StartResults(syncId, -1, null, pending.isAlreadyPresent());
+        }
+
         // if cdkey is in flight and hasn't expired return transfer in progress error
         if(hasInflightTransfer(charId)) {
             log.info("Pending transfer exists for sender: "+sender+" CDKEY: "+cdkey+" login: "+login);
@@ -98,7 +176,9 @@ public class SyncService {
 
         SyncRequest request = new SyncRequest(requestData, sender);
 
-        StartResults rejection = checkValidations(request);
+        Timer.Sample validationSample = metrics.start();
+        StartResults rejection = validationService.check(request, sender);
+        metrics.syncPhase(validationSample, TransferMetrics.VALIDATION);
         if(rejection != null) {
             log.warn("Validation failed for transfer request from: "+sender+" for cdkey: "+cdkey+" login: "+login+" character: "+charName+" reason: "+rejection.getErrorMessage());
             return rejection;
@@ -106,12 +186,17 @@ public class SyncService {
 
         UUID syncId = UUID.randomUUID();
 
+        // players often hop back and forth without changing the character
+        request.setAlreadyPresent(isInVault(request));
+
         uuidByCharId.put(charId,syncId);
         transfers.put(syncId,request);
+        journal.append(TransferJournal.Event.syncStart(syncId.toString(), request, sender, request.isAlreadyPresent()));
 
-        log.info("Transfer request from: "+sender+" for cdkey: "+cdkey+" login: "+login+" character: "+charName+" syncId: "+syncId);
+        log.info("Transfer request from: "+sender+" for cdkey: "+cdkey+" login: "+login+" character: "+charName+" syncId: "+syncId+
+            (request.isAlreadyPresent() ? " (already in vault)" : ""));
 
-        return new StartResults(syncId, -1, null);
+        return new StartResults(syncId, -1, null, request.isAlreadyPresent());
     }
 
     /**
@@ -126,9 +211,23 @@ public class SyncService {
         }
        
         SyncRequest request = transfers.get(requestId);
+        if(request.getStatusCode() == 200) {
+            // the sender retried a verify whose reply it didn't get
+            return makeRequestStatus(200, "", request);
+        }
 
         Path senderPath = Paths.get(commonConfig.getFtpHomeDirs(), request.getSender(), requestId.toString());
         String fullPath = senderPath.toAbsolutePath().toString();
+        if(request.isAlreadyPresent() && Files.notExists(senderPath)) {
+            // the sender skipped the upload, make sure the vault copy didn't change since /start
+            if(!isInVault(request)) {
+                log.error("Cannot verify requestId: "+requestId+" vault copy changed since the transfer started");
+                return makeRequestStatus(409, "Character changed on the destination, please try again",request);
+            }
+            log.info("Request "+requestId+" completed successfully, vault already up to date");
+            journal.append(TransferJournal.Event.syncEnd(requestId.toString()));
+            return makeRequestStatus(200, "", request);
+        }
         if(Files.notExists(senderPath)) {
             log.error("Cannot verify requestId: "+requestId+" file is missing: "+fullPath);
             return makeRequestStatus(400, "File missing",request);
@@ -150,8 +249,16 @@ public class SyncService {
             return makeRequestStatus(500, "IOException: "+ex.getMessage(),request);
         }
 
-        // verify checksum
-        String checksum = checksumUtil.getChecksum(senderPath);
+        // verify checksum, preferably the one computed while the upload was written
+        Timer.Sample checksumSample = metrics.start();
+        UploadChecksumRegistry.UploadDigest upload = uploadChecksums.take(senderPath);
+        String checksum;
+        if(upload != null && upload.getSize() == request.getFileSize()) {
+            checksum = upload.getChecksum();
+        } else {
+            checksum = checksumUtil.getChecksum(senderPath);
+        }
+        metrics.syncPhase(checksumSample, TransferMetrics.CHECKSUM);
 
         if(!checksum.equals(request.getChecksum())) {
             log.error("Cannot verify requestId: "+requestId+" invalid checksum: "+fullPath);
@@ -159,10 +266,10 @@ public class SyncService {
         }
 
         // Get destination
-        String vaultBy = receiverConfig.getVaultByCdkey() ? request.getCdkey() : request.getLoginName();
-        Path vaultPath = Paths.get(commonConfig.getVaultPath(), vaultBy);
-        Path destinationPath = vaultPath.resolve(request.getFileName()+".bic");
+        Path destinationPath = getVaultFile(request);
+        Path vaultPath = destinationPath.getParent();
 
+        Timer.Sample moveSample = metrics.start();
         try {
             // create destination directory if it doesn't exist
             if(Files.notExists(vaultPath)) {
@@ -171,13 +278,16 @@ public class SyncService {
     
             // move file
             Files.move(senderPath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+            vaultChecksums.put(destinationPath, checksum);
         } catch (Exception e) {
             log.error("Cannot verify requestId: "+requestId+" attempt to move file failed trying to move from "+fullPath+
                 "to "+destinationPath.toAbsolutePath().toString(),e);
             return makeRequestStatus(500, "Server error, please contact destination's admins.",request);
         }
+        metrics.syncPhase(moveSample, TransferMetrics.MOVE);
 
         log.info("Request "+requestId+" completed successfully");
+        journal.append(TransferJournal.Event.syncEnd(requestId.toString()));
 
         return makeRequestStatus(200, "", request);
     }
@@ -216,6 +326,8 @@ public class SyncService {
         // Remove file
         Path senderPath = Paths.get(commonConfig.getFtpHomeDirs(), request.getSender(), requestId.toString());
 
+        uploadChecksums.discard(senderPath);
+        journal.append(TransferJournal.Event.syncEnd(requestId.toString()));
         try {
             Files.deleteIfExists(senderPath);
         } catch(IOException ex) {
@@ -229,32 +341,25 @@ public class SyncService {
         }
     }
 
-    private StartResults checkValidations(SyncRequest requestData) {
-        List<ValidationQuery> queries = receiverConfig.getValidationQueries();
-        // nothing to do
-        if(queries == null) {
-            return null;
-        }
-        // do the checks
-        String query = "<not set>";
+    private Path getVaultFile(SyncData request) {
+        String vaultBy = receiverConfig.getVaultByCdkey() ? request.getCdkey() : request.getLoginName();
+        return Paths.get(commonConfig.getVaultPath(), vaultBy, request.getFileName()+".bic");
+    }
+
+    /**
+     * Does the vault already hold a bic with the requested size and checksum?
+     */
+    private boolean isInVault(SyncData request) {
+        Path vaultFile = getVaultFile(request);
         try {
-            for(ValidationQuery q : queries) {
-                SqlParameterSource parameters = new MapSqlParameterSource()
-                    .addValue("world", requestData.getSender())
-                    .addValue("cdkey", requestData.getCdkey())
-                    .addValue("login", requestData.getLoginName())
-                    .addValue("name", requestData.getCharacterName());
-                query = "SELECT count(*) "+q.getQuery();
-                Integer count = jdbcTemplate.queryForObject(query, parameters, Integer.class);
-                if(count != null && count > 0) {
-                    return new StartResults(null, q.getRejectionCode(), q.getRejectionReason());
-                }
-            };
-        } catch(DataAccessException ex) {
-            log.error("Could not run the validation query: [{}]",query,ex);
-            return new StartResults(null, 500, "Error on destination server.  Please contact their staff for assistance.");
+            if(Files.notExists(vaultFile) || Files.size(vaultFile) != request.getFileSize()) {
+                return false;
+            }
+        } catch(IOException ex) {
+            return false;
         }
-        return null;
+        String checksum = vaultChecksums.getChecksum(vaultFile);
+        return checksum != null && checksum.equals(request.getChecksum());
     }
 
     /**
@@ -285,6 +390,29 @@ public class SyncService {
         return true;
     }
 
+    /**
+     * @return the pending transfer if it was started by the same sender with the same bic, null otherwise
+     */
+    private SyncRequest findRetriedStart(String charId, SyncData requestData, String sender) {
+        UUID xferId = uuidByCharId.get(charId);
+        if(xferId == null)
+            return null;
+
+        SyncRequest request = transfers.get(xferId);
+        if(request == null || request.getStatusCode() >= 200)
+            return null;
+
+        if( sender.equals(request.getSender())
+            && Objects.equals(requestData.getLoginName(), request.getLoginName())
+            && Objects.equals(requestData.getFileName(), request.getFileName())
+            && Objects.equals(requestData.getChecksum(), request.getChecksum())
+            && requestData.getFileSize() == request.getFileSize())
+        {
+            return request;
+        }
+        return null;
+    }
+
     private boolean hasInflightTransfer(String charId) {
         UUID xferId = uuidByCharId.get(charId);
         if(xferId == null)
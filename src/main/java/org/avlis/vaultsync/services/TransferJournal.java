@@ -0,0 +1,339 @@
+package org.avlis.vaultsync.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.avlis.vaultsync.config.CommonConfig;
+import org.avlis.vaultsync.config.ReceiverConfig;
+import org.avlis.vaultsync.models.SyncData;
+import org.avlis.vaultsync.models.TransferData;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append only log of transfer lifecycle events so SenderService and
+ * SyncService can pick up where they left off after a restart.
+ *
+ * One JSON event per line.  Callers only queue the event, a writer thread
+ * appends everything queued since its last pass and fsyncs once for the
+ * whole batch.  The file is rewritten with just the live transfers at startup
+ * and whenever it grows past common.journalCompactSize.
+ *
+ * Disabled (every call is a no-op) when common.journalPath isn't set.
+ */
+@Slf4j
+@Component
+public class TransferJournal implements DisposableBean {
+
+    public static final String SYNC_START = "sync.start";
+    public static final String SYNC_END = "sync.end";
+    public static final String SEND_START = "send.start";
+    public static final String SEND_PEER = "send.peer";
+    public static final String SEND_END = "send.end";
+    // aborted or turned away, nothing to report
+    public static final String SEND_REMOVED = "send.removed";
+
+    @Data
+    @NoArgsConstructor
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Event {
+        private String type;
+        // syncId for sync.* events, charId for send.* events
+        private String key;
+        private long time;
+        private String sender;
+        private Boolean alreadyPresent;
+        private String syncId;
+        private Integer statusCode;
+        private String errorMessage;
+        private SyncData sync;
+        private TransferData transfer;
+
+        Event(String type, String key) {
+            this.type = type;
+            this.key = key;
+            this.time = System.currentTimeMillis();
+        }
+
+        public static Event syncStart(String syncId, SyncData sync, String sender, boolean alreadyPresent) {
+            Event event = new Event(SYNC_START, syncId);
+            event.sync = copyOf(sync);
+            event.sender = sender;
+            event.alreadyPresent = alreadyPresent;
+            return event;
+        }
+
+        public static Event syncEnd(String syncId) {
+            return new Event(SYNC_END, syncId);
+        }
+
+        public static Event sendStart(String charId, TransferData transfer) {
+            Event event = new Event(SEND_START, charId);
+            event.transfer = copyOf(transfer);
+            return event;
+        }
+
+        public static Event sendPeer(String charId, String syncId) {
+            Event event = new Event(SEND_PEER, charId);
+            event.syncId = syncId;
+            return event;
+        }
+
+        public static Event sendEnd(String charId, int statusCode, String errorMessage) {
+            Event event = new Event(SEND_END, charId);
+            event.statusCode = statusCode;
+            event.errorMessage = errorMessage;
+            return event;
+        }
+
+        public static Event sendRemoved(String charId) {
+            return new Event(SEND_REMOVED, charId);
+        }
+
+        // the request subclasses carry state that doesn't belong in the journal
+        private static SyncData copyOf(SyncData from) {
+            SyncData to = new SyncData();
+            to.setCharacterName(from.getCharacterName());
+            to.setLoginName(from.getLoginName());
+            to.setCdkey(from.getCdkey());
+            to.setFileName(from.getFileName());
+            to.setFileSize(from.getFileSize());
+            to.setChecksum(from.getChecksum());
+            return to;
+        }
+
+        private static TransferData copyOf(TransferData from) {
+            TransferData to = new TransferData();
+            to.setCharacterName(from.getCharacterName());
+            to.setLoginName(from.getLoginName());
+            to.setCdkey(from.getCdkey());
+            to.setFileName(from.getFileName());
+            to.setDestination(from.getDestination());
+            return to;
+        }
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private Path journalPath = null;
+    private long compactSize;
+    private long ttlMillis;
+
+    // events of every transfer that hasn't ended or expired, by key in arrival order
+    private Map<String, List<Event>> live = new LinkedHashMap<>();
+    private List<Event> recovered = Collections.emptyList();
+
+    private BlockingQueue<Event> pending = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+    // a write failed, the file is missing events until it's rewritten from live
+    private boolean rewrite = false;
+    private Thread writer;
+    private volatile boolean running = true;
+
+    @Autowired
+    public TransferJournal( CommonConfig commonConfig,
+                            ReceiverConfig receiverConfig) throws IOException
+    {
+        if(commonConfig.getJournalPath() == null || commonConfig.getJournalPath().isBlank()) {
+            return;
+        }
+        journalPath = Paths.get(commonConfig.getJournalPath());
+        compactSize = commonConfig.getJournalCompactSize();
+        ttlMillis = TimeUnit.SECONDS.toMillis(receiverConfig.getSyncTimeout());
+
+        replay();
+        recovered = liveEvents();
+        compact();
+        log.info("Transfer journal {} recovered {} events",journalPath,recovered.size());
+
+        writer = new Thread(this::writeLoop, "transfer-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean isEnabled() {
+        return journalPath != null;
+    }
+
+    /**
+     * Events of the transfers that were live when the previous run stopped, in
+     * the order they happened
+     */
+    public List<Event> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Queues the event.  It's on disk within one writer pass.
+     */
+    public void append(Event event) {
+        if(isEnabled() && running) {
+            pending.add(event);
+        }
+    }
+
+    private void replay() throws IOException {
+        if(Files.notExists(journalPath)) {
+            return;
+        }
+        int lineNumber = 0;
+        try(BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.isBlank()) {
+                    continue;
+                }
+                try {
+                    track(mapper.readValue(line, Event.class));
+                } catch(IOException ex) {
+                    // most likely the tail of a write cut off by the crash
+                    log.warn("Skipping unreadable journal entry at {}:{}: {}",journalPath,lineNumber,ex.getMessage());
+                }
+            }
+        }
+    }
+
+    // only called by the constructor and the writer thread
+    private void track(Event event) {
+        if(SYNC_END.equals(event.getType()) || SEND_REMOVED.equals(event.getType())) {
+            // nothing left to recover on the receiving side
+            live.remove(event.getKey());
+            return;
+        }
+        if(SEND_START.equals(event.getType()) || SYNC_START.equals(event.getType())) {
+            // a new request reuses the charId of a finished one
+            live.remove(event.getKey());
+        }
+        // sends stay until they expire so their final status can still be reported
+        live.computeIfAbsent(event.getKey(), k -> new ArrayList<>()).add(event);
+    }
+
+    private List<Event> liveEvents() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        live.values().removeIf(events -> events.get(0).getTime() < cutoff);
+
+        List<Event> events = new ArrayList<>();
+        live.values().forEach(events::addAll);
+        events.sort(Comparator.comparingLong(Event::getTime));
+        return events;
+    }
+
+    /**
+     * Rewrites the journal with only the live transfers.  The new file is
+     * written beside the old one and moved over it, so a crash leaves one or
+     * the other intact.
+     */
+    private void compact() throws IOException {
+        Path temp = journalPath.resolveSibling(journalPath.getFileName()+".tmp");
+        try(FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(out, liveEvents());
+            out.force(true);
+        }
+        Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // the old channel still points at the replaced file
+        FileChannel previous = channel;
+        channel = null;
+        if(previous != null) {
+            try {
+                previous.close();
+            } catch(IOException ex) {
+                log.warn("Could not close the replaced transfer journal: {}",ex.getMessage());
+            }
+        }
+        channel = openForAppend();
+        rewrite = false;
+    }
+
+    private FileChannel openForAppend() throws IOException {
+        return FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void write(FileChannel out, List<Event> events) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for(Event event : events) {
+            lines.append(mapper.writeValueAsString(event)).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while(buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>();
+        while(running || !pending.isEmpty()) {
+            try {
+                Event first = pending.poll(1, TimeUnit.SECONDS);
+                if(first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch);
+                flush(batch);
+            } catch(InterruptedException ex) {
+                // destroy() wants the rest written out
+                running = false;
+            }
+            batch.clear();
+        }
+        pending.drainTo(batch);
+        flush(batch);
+    }
+
+    private void flush(List<Event> batch) {
+        if(batch.isEmpty()) {
+            return;
+        }
+        // tracked even if the write fails, the next rewrite puts them on disk
+        batch.forEach(this::track);
+        try {
+            if(rewrite) {
+                compact();
+                log.info("Rewrote the transfer journal {} after a failed write",journalPath);
+                return;
+            }
+            if(channel == null) {
+                channel = openForAppend();
+            }
+            write(channel, batch);
+            // one fsync for the whole batch
+            channel.force(false);
+            if(channel.size() > compactSize) {
+                compact();
+            }
+        } catch(IOException ex) {
+            rewrite = true;
+            log.error("Could not write {} events to the transfer journal {}, it will be rewritten with the next batch",batch.size(),journalPath,ex);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if(!isEnabled()) {
+            return;
+        }
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+        if(channel != null) {
+            channel.close();
+        }
+    }
+}
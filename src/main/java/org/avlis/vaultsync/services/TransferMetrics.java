@@ -0,0 +1,114 @@
+package org.avlis.vaultsync.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Names and tags for the transfer metrics so SendClient and SyncService
+ * don't each build their own.  Everything is published through the
+ * actuator, /actuator/prometheus for a scraper.
+ *
+ * Send side meters are tagged with the destination, the peer's name in
+ * the peers config.
+ */
+@Component
+public class TransferMetrics {
+
+    // one sample per phase of SendClient.startPeer, tagged phase and destination
+    public static final String SEND_PHASE = "vaultsync.send.phase";
+    // a whole /start -> FTPS -> /verify lifecycle, queue wait not included
+    public static final String SEND_TRANSFER = "vaultsync.send.transfer";
+    // finished transfers by final status code
+    public static final String SEND_RESULT = "vaultsync.send.result";
+    public static final String SEND_BYTES = "vaultsync.send.bytes";
+    // per upload, bytes over the time spent streaming them
+    public static final String SEND_THROUGHPUT = "vaultsync.send.throughput";
+
+    // one sample per phase of /v1/sync/start and /v1/sync/verify, tagged phase
+    public static final String SYNC_PHASE = "vaultsync.sync.phase";
+    // replies to /v1/sync/* by endpoint and status code
+    public static final String SYNC_RESULT = "vaultsync.sync.result";
+
+    public static final String START = "start";
+    public static final String CONNECT = "connect";
+    public static final String UPLOAD = "upload";
+    public static final String VERIFY = "verify";
+    public static final String CANCEL = "cancel";
+    public static final String VALIDATION = "validation";
+    public static final String CHECKSUM = "checksum";
+    public static final String MOVE = "move";
+
+    private MeterRegistry registry;
+
+    @Autowired
+    public TransferMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    public void sendPhase(Timer.Sample sample, String phase, String destination) {
+        sample.stop(timer(SEND_PHASE, "phase", phase, "destination", destination));
+    }
+
+    public void sendTransfer(long elapsedMillis, String destination, int statusCode) {
+        timer(SEND_TRANSFER, "destination", destination).record(elapsedMillis, TimeUnit.MILLISECONDS);
+        Counter.builder(SEND_RESULT)
+            .tags("destination", destination, "status", String.valueOf(statusCode))
+            .register(registry)
+            .increment();
+    }
+
+    public void sendBytes(String destination, long bytes, long elapsedNanos) {
+        if(bytes <= 0) {
+            return;
+        }
+        Counter.builder(SEND_BYTES)
+            .baseUnit("bytes")
+            .tag("destination", destination)
+            .register(registry)
+            .increment(bytes);
+        if(elapsedNanos > 0) {
+            DistributionSummary.builder(SEND_THROUGHPUT)
+                .baseUnit("bytes_per_second")
+                .tag("destination", destination)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+        }
+    }
+
+    public void syncPhase(Timer.Sample sample, String phase) {
+        sample.stop(timer(SYNC_PHASE, "phase", phase));
+    }
+
+    /**
+     * @param statusCode as sent back to the peer, StartResults uses -1 for accepted
+     */
+    public void syncResult(String endpoint, int statusCode) {
+        Counter.builder(SYNC_RESULT)
+            .tags("endpoint", endpoint, "status", String.valueOf(statusCode < 0 ? 200 : statusCode))
+            .register(registry)
+            .increment();
+    }
+
+    private Timer timer(String name, String... tags) {
+        return Timer.builder(name)
+            .tags(tags)
+            .publishPercentileHistogram()
+            .register(registry);
+    }
+}
@@ -0,0 +1,57 @@
+package org.avlis.vaultsync.services;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.avlis.vaultsync.config.ReceiverConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.jodah.expiringmap.ExpiringMap;
+
+/**
+ * Size and checksum of each upload, computed by the FTPS server while the
+ * bytes were written so verification doesn't have to read the file again.
+ */
+@Component
+public class UploadChecksumRegistry {
+
+    @Getter
+    @AllArgsConstructor
+    public static class UploadDigest {
+        private final long size;
+        private final String checksum;
+    }
+
+    // unverified uploads are forgotten along with their transfer request
+    private Map<String, UploadDigest> uploads;
+
+    @Autowired
+    public UploadChecksumRegistry(ReceiverConfig receiverConfig) {
+        uploads = ExpiringMap.builder()
+            .expiration(receiverConfig.getSyncTimeout(), TimeUnit.SECONDS)
+            .build();
+    }
+
+    public void record(Path file, long size, String checksum) {
+        uploads.put(keyOf(file), new UploadDigest(size, checksum));
+    }
+
+    /**
+     * Removes and returns the digest recorded for the file, null if there isn't one
+     */
+    public UploadDigest take(Path file) {
+        return uploads.remove(keyOf(file));
+    }
+
+    public void discard(Path file) {
+        uploads.remove(keyOf(file));
+    }
+
+    private static String keyOf(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+}
@@ -0,0 +1,410 @@
+package org.avlis.vaultsync.services;
+
+import java.sql.ResultSetMetaData;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.avlis.vaultsync.config.ReceiverConfig;
+import org.avlis.vaultsync.config.ValidationQuery;
+import org.avlis.vaultsync.models.StartResults;
+import org.avlis.vaultsync.models.SyncData;
+import org.avlis.vaultsync.models.ValidationCacheStatus;
+import org.avlis.vaultsync.models.ValidationSnapshotStatus;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import lombok.extern.slf4j.Slf4j;
+import net.jodah.expiringmap.ExpirationPolicy;
+import net.jodah.expiringmap.ExpiringMap;
+
+/**
+ * Runs the receiver.validationQueries for a transfer request.
+ *
+ * Counts are cached for the query's cacheTtl, keyed by the query and the
+ * values of only the parameters it uses, so a world wide "transfers disabled"
+ * check is shared by every player while a jail check is per login/cdkey.
+ *
+ * Queries that aren't cached are sent to the database as one statement, a
+ * UNION ALL of counts tagged with the query's position, so a request costs
+ * one round trip no matter how many rules are configured.
+ *
+ * In snapshot mode rules with a snapshotQuery are checked against sets loaded
+ * in the background instead, and only go to the database while their
+ * snapshot is stale.
+ */
+@Slf4j
+@Component
+public class ValidationService implements DisposableBean {
+
+    // cached rule lookups, tagged result=hit|miss
+    public static final String CACHE = "vaultsync.validation.cache";
+
+    // the substitutions documented on ValidationQuery, in key order
+    private static final String[] PARAMETERS = { "world", "cdkey", "login", "name" };
+
+    private static class CompiledQuery {
+        final int index;
+        final ValidationQuery config;
+        final String sql;
+        // this query's part of the combined statement
+        final String tagged;
+        final boolean[] uses = new boolean[PARAMETERS.length];
+        // replaced whole by each reload, null until the first one succeeds
+        volatile Snapshot snapshot = null;
+
+        CompiledQuery(int index, ValidationQuery config) {
+            this.index = index;
+            this.config = config;
+            this.sql = "SELECT count(*) "+config.getQuery();
+            this.tagged = "SELECT "+index+" AS rule, count(*) AS matches "+config.getQuery();
+            for(int i = 0; i < PARAMETERS.length; i++) {
+                uses[i] = Pattern.compile(":"+PARAMETERS[i]+"\\b").matcher(config.getQuery()).find();
+            }
+        }
+
+        long ttl() {
+            Integer ttl = config.getCacheTtl();
+            return ttl != null ? ttl : 0;
+        }
+    }
+
+    /**
+     * The rows of a snapshotQuery, one set of lower cased values per parameter
+     * column.  Never modified once loaded.
+     */
+    private static class Snapshot {
+        final long loadedAt = System.currentTimeMillis();
+        final List<Set<String>> columns;
+        final int rows;
+
+        Snapshot(List<Set<String>> columns, int rows) {
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        boolean matches(Object[] values) {
+            boolean keyed = false;
+            for(int i = 0; i < PARAMETERS.length; i++) {
+                Set<String> column = columns.get(i);
+                if(column == null) {
+                    continue;
+                }
+                keyed = true;
+                if(values[i] != null && column.contains(values[i].toString().toLowerCase(Locale.ROOT))) {
+                    return true;
+                }
+            }
+            // a flag style rule, eg. transfers disabled
+            return !keyed && rows > 0;
+        }
+    }
+
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    private boolean batch;
+    private List<CompiledQuery> queries = new ArrayList<>();
+    // combined statements by the set of queries they run
+    private Map<BitSet, String> statements = new ConcurrentHashMap<>();
+
+    // [query index, parameter values...] -> count
+    private ExpiringMap<List<Object>, Integer> cache;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    private boolean snapshotMode;
+    private long snapshotMaxAgeMillis;
+    private ScheduledExecutorService snapshotLoader = null;
+
+    @Autowired
+    public ValidationService(   ReceiverConfig receiverConfig,
+                                NamedParameterJdbcTemplate jdbcTemplate,
+                                TransferMetrics metrics)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.batch = receiverConfig.isBatchValidationQueries();
+
+        List<ValidationQuery> configured = receiverConfig.getValidationQueries();
+        if(configured != null) {
+            for(ValidationQuery q : configured) {
+                queries.add(new CompiledQuery(queries.size(), q));
+            }
+        }
+        if(batch && !queries.isEmpty()) {
+            // the common case, nothing cached
+            BitSet all = new BitSet();
+            all.set(0, queries.size());
+            statements.put(all, combine(all));
+        }
+
+        cache = ExpiringMap.builder()
+            .variableExpiration()
+            .expirationPolicy(ExpirationPolicy.CREATED)
+            .maxSize(receiverConfig.getValidationCacheSize())
+            .build();
+        FunctionCounter.builder(CACHE, hits, AtomicLong::get)
+            .tag("result", "hit")
+            .register(metrics.getRegistry());
+        FunctionCounter.builder(CACHE, misses, AtomicLong::get)
+            .tag("result", "miss")
+            .register(metrics.getRegistry());
+
+        snapshotMode = "snapshot".equalsIgnoreCase(receiverConfig.getValidationMode());
+        snapshotMaxAgeMillis = TimeUnit.SECONDS.toMillis(receiverConfig.getSnapshotMaxAge());
+        if(snapshotMode && queries.stream().anyMatch(q -> q.config.getSnapshotQuery() != null)) {
+            snapshotLoader = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "validation-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            // first load in the background, rules use live SQL until it lands
+            snapshotLoader.scheduleWithFixedDelay(this::refreshSnapshots, 0, receiverConfig.getSnapshotRefresh(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs the validation queries in order
+     * @return the rejection of the first query that matched, null if the transfer is allowed
+     */
+    public StartResults check(SyncData requestData, String sender) {
+        Object[] values = {
+            sender,
+            requestData.getCdkey(),
+            requestData.getLoginName(),
+            requestData.getCharacterName()
+        };
+
+        // use what's cached, the rest go to the database
+        Integer[] counts = new Integer[queries.size()];
+        BitSet pending = new BitSet();
+        for(CompiledQuery q : queries) {
+            Integer count = fromSnapshot(q, values);
+            if(count == null) {
+                count = cached(q, values);
+            }
+            if(count == null) {
+                pending.set(q.index);
+                continue;
+            }
+            counts[q.index] = count;
+            if(count > 0) {
+                // later rules can't change the outcome
+                break;
+            }
+        }
+
+        if(!pending.isEmpty()) {
+            String sql = "<not set>";
+            try {
+                if(batch) {
+                    sql = statements.computeIfAbsent(pending, this::combine);
+                    runCombined(sql, values, counts);
+                } else {
+                    for(int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+                        sql = queries.get(i).sql;
+                        counts[i] = jdbcTemplate.queryForObject(sql, parameters(values), Integer.class);
+                    }
+                }
+            } catch(DataAccessException ex) {
+                log.error("Could not run the validation query: [{}]",sql,ex);
+                return new StartResults(null, 500, "Error on destination server.  Please contact their staff for assistance.");
+            }
+            for(int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+                store(queries.get(i), values, counts[i]);
+            }
+        }
+
+        // the first rule that matched decides
+        for(CompiledQuery q : queries) {
+            Integer count = counts[q.index];
+            if(count != null && count > 0) {
+                return new StartResults(null, q.config.getRejectionCode(), q.config.getRejectionReason());
+            }
+        }
+        return null;
+    }
+
+    private String combine(BitSet rules) {
+        StringJoiner sql = new StringJoiner(" UNION ALL ");
+        for(int i = rules.nextSetBit(0); i >= 0; i = rules.nextSetBit(i + 1)) {
+            sql.add(queries.get(i).tagged);
+        }
+        return sql.toString();
+    }
+
+    private void runCombined(String sql, Object[] values, Integer[] counts) {
+        jdbcTemplate.query(sql, parameters(values), rs -> {
+            counts[rs.getInt(1)] = rs.getInt(2);
+        });
+    }
+
+    private Integer fromSnapshot(CompiledQuery q, Object[] values) {
+        if(!snapshotMode) {
+            return null;
+        }
+        Snapshot snapshot = q.snapshot;
+        if(snapshot == null || System.currentTimeMillis() - snapshot.loadedAt > snapshotMaxAgeMillis) {
+            return null;
+        }
+        return snapshot.matches(values) ? 1 : 0;
+    }
+
+    private Integer cached(CompiledQuery q, Object[] values) {
+        if(q.ttl() <= 0) {
+            return null;
+        }
+        Integer count = cache.get(cacheKey(q, values));
+        if(count != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return count;
+    }
+
+    private void store(CompiledQuery q, Object[] values, Integer count) {
+        long ttl = q.ttl();
+        if(ttl > 0 && count != null) {
+            cache.put(cacheKey(q, values), count, ttl, TimeUnit.SECONDS);
+        }
+    }
+
+    private static MapSqlParameterSource parameters(Object[] values) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+        for(int i = 0; i < PARAMETERS.length; i++) {
+            parameters.addValue(PARAMETERS[i], values[i]);
+        }
+        return parameters;
+    }
+
+    private static List<Object> cacheKey(CompiledQuery q, Object[] values) {
+        List<Object> key = new ArrayList<>(PARAMETERS.length + 1);
+        key.add(q.index);
+        for(int i = 0; i < PARAMETERS.length; i++) {
+            if(q.uses[i]) {
+                key.add(values[i]);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Drops cached results.  With no value everything is dropped, otherwise
+     * only results that were looked up with that world, cdkey, login or name.
+     * @return the number of results dropped
+     */
+    public int invalidate(String value) {
+        if(value == null || value.isEmpty()) {
+            int size = cache.size();
+            cache.clear();
+            log.info("Validation cache cleared, {} results dropped",size);
+            return size;
+        }
+
+        int dropped = 0;
+        for(List<Object> key : new ArrayList<>(cache.keySet())) {
+            if(key.subList(1, key.size()).contains(value) && cache.remove(key) != null) {
+                dropped++;
+            }
+        }
+        log.info("Validation cache dropped {} results for '{}'",dropped,value);
+        return dropped;
+    }
+
+    /**
+     * Reloads every rule's snapshot.  A rule that fails to load keeps its old
+     * snapshot until it's too old to use.
+     */
+    public synchronized void refreshSnapshots() {
+        for(CompiledQuery q : queries) {
+            String sql = q.config.getSnapshotQuery();
+            if(sql == null) {
+                continue;
+            }
+            try {
+                q.snapshot = loadSnapshot(sql);
+                log.debug("Loaded {} rows for validation rule {}",q.snapshot.rows,q.index);
+            } catch(DataAccessException ex) {
+                log.error("Could not load the validation snapshot: [{}]",sql,ex);
+            }
+        }
+    }
+
+    private Snapshot loadSnapshot(String sql) {
+        return jdbcTemplate.getJdbcTemplate().query(sql, rs -> {
+            // which result columns are parameters
+            ResultSetMetaData meta = rs.getMetaData();
+            int[] columnOf = new int[PARAMETERS.length];
+            List<Set<String>> values = new ArrayList<>(PARAMETERS.length);
+            for(int i = 0; i < PARAMETERS.length; i++) {
+                values.add(null);
+                for(int c = 1; c <= meta.getColumnCount(); c++) {
+                    if(PARAMETERS[i].equalsIgnoreCase(meta.getColumnLabel(c))) {
+                        columnOf[i] = c;
+                        values.set(i, new HashSet<>());
+                    }
+                }
+            }
+
+            int rows = 0;
+            while(rs.next()) {
+                rows++;
+                for(int i = 0; i < PARAMETERS.length; i++) {
+                    if(columnOf[i] > 0) {
+                        String value = rs.getString(columnOf[i]);
+                        if(value != null) {
+                            values.get(i).add(value.toLowerCase(Locale.ROOT));
+                        }
+                    }
+                }
+            }
+
+            for(int i = 0; i < PARAMETERS.length; i++) {
+                if(values.get(i) != null) {
+                    values.set(i, Set.copyOf(values.get(i)));
+                }
+            }
+            return new Snapshot(Collections.unmodifiableList(values), rows);
+        });
+    }
+
+    /**
+     * Age and size of each rule's snapshot
+     */
+    public List<ValidationSnapshotStatus> getSnapshotStatus() {
+        List<ValidationSnapshotStatus> results = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for(CompiledQuery q : queries) {
+            if(q.config.getSnapshotQuery() == null) {
+                continue;
+            }
+            Snapshot snapshot = q.snapshot;
+            if(snapshot == null) {
+                results.add(new ValidationSnapshotStatus(q.index, q.config.getRejectionReason(), 0, 0, false));
+            } else {
+                results.add(new ValidationSnapshotStatus(q.index, q.config.getRejectionReason(), snapshot.rows,
+                    snapshot.loadedAt, snapshotMode && now - snapshot.loadedAt <= snapshotMaxAgeMillis));
+            }
+        }
+        return results;
+    }
+
+    public ValidationCacheStatus getCacheStatus() {
+        return new ValidationCacheStatus(cache.size(), cache.getMaxSize(), hits.get(), misses.get());
+    }
+
+    @Override
+    public void destroy() {
+        if(snapshotLoader != null) {
+            snapshotLoader.shutdownNow();
+        }
+    }
+}
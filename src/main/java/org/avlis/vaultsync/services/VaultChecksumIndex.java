@@ -0,0 +1,87 @@
+package org.avlis.vaultsync.services;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.avlis.vaultsync.util.ChecksumUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Checksums of the bic files in our servervault.  An entry is only trusted
+ * while the file's size and modification time match what was indexed, so
+ * saves made by the game server are picked up on the next lookup.
+ */
+@Slf4j
+@Component
+public class VaultChecksumIndex {
+
+    @AllArgsConstructor
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String checksum;
+    }
+
+    private ChecksumUtil checksumUtil;
+
+    private Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Autowired
+    public VaultChecksumIndex(ChecksumUtil checksumUtil) {
+        this.checksumUtil = checksumUtil;
+    }
+
+    /**
+     * Returns the checksum of the vault file, hashing it only if it changed since
+     * it was last indexed.  Returns null if the file doesn't exist or can't be read.
+     */
+    public String getChecksum(Path file) {
+        String key = keyOf(file);
+        try {
+            long size = Files.size(file);
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+            Entry entry = entries.get(key);
+            if(entry != null && entry.size == size && entry.lastModified == lastModified) {
+                return entry.checksum;
+            }
+
+            String checksum = checksumUtil.getChecksum(file);
+            if(ChecksumUtil.ERROR.equals(checksum)) {
+                // unreadable, hash it again next time
+                entries.remove(key);
+                return null;
+            }
+            entries.put(key, new Entry(size, lastModified, checksum));
+            return checksum;
+        } catch(NoSuchFileException ex) {
+            entries.remove(key);
+        } catch(IOException ex) {
+            log.warn("Could not index {}: {}",file,ex.getMessage());
+            entries.remove(key);
+        }
+        return null;
+    }
+
+    /**
+     * Records the checksum of a file we just wrote into the vault
+     */
+    public void put(Path file, String checksum) {
+        try {
+            entries.put(keyOf(file), new Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis(), checksum));
+        } catch(IOException ex) {
+            log.warn("Could not index {}: {}",file,ex.getMessage());
+            entries.remove(keyOf(file));
+        }
+    }
+
+    private static String keyOf(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+}
@@ -1,47 +1,121 @@
 package org.avlis.vaultsync.util;
 
-import java.io.InputStream;
 import java.io.IOException;
 
-import java.math.BigInteger;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 import org.springframework.stereotype.Component;
 
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SHA-512 checksums shared by every SendClient and the receiver.
+ *
+ * MessageDigest isn't thread safe so each caller borrows a digest and a
+ * direct read buffer from a lock free pool instead of sharing one instance.
+ */
+@Slf4j
 @Component
 public class ChecksumUtil {
-    private MessageDigest digest;
-    
+    public static final String ALGORITHM = "SHA-512";
+    // what getChecksum(Path) returns for a file it couldn't read
+    public static final String ERROR = "ERROR";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Queue<Hasher> hashers = new ConcurrentLinkedQueue<>();
+
     public ChecksumUtil() throws NoSuchAlgorithmException {
-        digest = MessageDigest.getInstance("SHA-512");
+        // fail at startup instead of on the first transfer
+        hashers.add(new Hasher(MessageDigest.getInstance(ALGORITHM)));
     }
 
     /**
-     * Returns the SHA-512 checksum of the file
+     * Returns the SHA-512 checksum of the bytes
      */
-    public String getChecksum(Path path) {
-        int count = 0;
-        byte[] buffer = new byte[4096];
-        
-        digest.reset();
-
+    public String getChecksum(byte[] bytes) {
+        Hasher hasher = borrow();
         try {
-            InputStream is = Files.newInputStream(path, StandardOpenOption.READ);
-            while((count = is.read(buffer)) != -1) {
-                digest.update(buffer, 0, count);
+            hasher.digest.update(bytes);
+            return toHex(hasher.digest.digest());
+        } finally {
+            release(hasher);
+        }
+    }
+
+    /**
+     * Returns the SHA-512 checksum of the file, ERROR if it couldn't be read
+     */
+    public String getChecksum(Path path) {
+        Hasher hasher = borrow();
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = hasher.buffer;
+            while(channel.read(buffer) != -1) {
+                buffer.flip();
+                hasher.digest.update(buffer);
+                buffer.clear();
             }
-    
-            byte[] hash = digest.digest();
-            BigInteger bHash = new BigInteger(1, hash);
-            return String.format("%0" + (hash.length << 1) + "x", bHash);
+            return toHex(hasher.digest.digest());
         } catch(IOException ex) {
-            ex.printStackTrace();
+            log.error("Could not checksum {}",path,ex);
+        } finally {
+            release(hasher);
         }
 
-        return "ERROR";
+        return ERROR;
+    }
+
+    /**
+     * A new digest for callers that hash incrementally, eg. while bytes stream in
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch(NoSuchAlgorithmException ex) {
+            // checked in the constructor
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Lower case hex, the same format peers exchange in SyncData.checksum
+     */
+    public static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length << 1];
+        for(int i = 0, j = 0; i < hash.length; i++) {
+            int b = hash[i] & 0xff;
+            hex[j++] = HEX_DIGITS[b >>> 4];
+            hex[j++] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    private Hasher borrow() {
+        Hasher hasher = hashers.poll();
+        return hasher != null ? hasher : new Hasher(newDigest());
+    }
+
+    private void release(Hasher hasher) {
+        hasher.digest.reset();
+        hasher.buffer.clear();
+        hashers.offer(hasher);
+    }
+
+    private static class Hasher {
+        final MessageDigest digest;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Hasher(MessageDigest digest) {
+            this.digest = digest;
+        }
     }
 }
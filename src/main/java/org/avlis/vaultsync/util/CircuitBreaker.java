@@ -0,0 +1,101 @@
+package org.avlis.vaultsync.util;
+
+/**
+ * Tracks whether a peer is reachable.  After failureThreshold failures in a
+ * row the breaker opens and transfers to the peer fail straight away instead
+ * of each waiting out the connect timeout.  Once openMillis has passed one
+ * transfer is let through (half open), its outcome closes or re-opens the
+ * breaker.
+ */
+public class CircuitBreaker {
+
+    // the ordinal is published as vaultsync.peer.breaker.state, only add to the end
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * May a call to the peer go ahead?  In the half open state only the first
+     * caller gets through and it must report back with recordSuccess() or
+     * recordFailure().
+     */
+    public synchronized boolean tryAcquire() {
+        switch(currentState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if(trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Would a call be let through right now?  Doesn't claim the half open trial.
+     */
+    public synchronized boolean isAvailable() {
+        State current = currentState();
+        return current == State.CLOSED || (current == State.HALF_OPEN && !trialInFlight);
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if(currentState() == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return currentState();
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Seconds until a trial call is allowed, 0 if calls are allowed now
+     */
+    public synchronized int getRetryAfterSeconds() {
+        State current = currentState();
+        if(current == State.HALF_OPEN && trialInFlight) {
+            // waiting to hear how the trial went
+            return 1;
+        }
+        if(current != State.OPEN) {
+            return 0;
+        }
+        long remaining = openedAt + openMillis - System.currentTimeMillis();
+        return (int) Math.max(1, (remaining + 999) / 1000);
+    }
+
+    private State currentState() {
+        if(state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+        }
+        return state;
+    }
+}
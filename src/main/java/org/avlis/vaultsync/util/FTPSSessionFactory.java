@@ -0,0 +1,137 @@
+package org.avlis.vaultsync.util;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.pool2.KeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.avlis.vaultsync.config.FTPSClientConfig;
+import org.avlis.vaultsync.config.PeerInfo;
+import org.avlis.vaultsync.config.SenderConfig;
+import org.avlis.vaultsync.security.SslContextRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates logged in FTPS control sessions to a peer.  The PeerInfo instance
+ * from PeerConfig is the pool key.
+ */
+@Slf4j
+@Service
+public class FTPSSessionFactory implements KeyedPooledObjectFactory<PeerInfo, PeerFTPSClient> {
+
+    // shared by every session so reconnects can resume their TLS session
+    private SSLContext sslContext;
+    private SslContextRegistry sslContextRegistry;
+
+    private int connectTimeoutMillis;
+    private Duration validateAfterIdle;
+    private boolean compression;
+    private boolean reuseDataSession;
+
+    @Autowired
+    public FTPSSessionFactory(  FTPSClientConfig ftpClientConfig,
+                                SenderConfig senderConfig,
+                                SslContextRegistry sslContextRegistry)
+    {
+        this.sslContextRegistry = sslContextRegistry;
+        sslContext = sslContextRegistry.getContext(ftpClientConfig.getKeyStore(), ftpClientConfig.getTrustStore(), SslContextRegistry.DEFAULT_PROTOCOL);
+
+        connectTimeoutMillis = (int) Duration.ofSeconds(senderConfig.getConnectTimeout()).toMillis();
+        validateAfterIdle = Duration.ofSeconds(ftpClientConfig.getValidateAfterIdle());
+        compression = ftpClientConfig.isCompression();
+        reuseDataSession = ftpClientConfig.isReuseDataSession();
+    }
+
+    @Override
+    public PooledObject<PeerFTPSClient> makeObject(PeerInfo peer) throws Exception {
+        PeerFTPSClient ftpsClient = makeFTPSClient();
+
+        log.debug("FTPS client connecting to {}:{}",peer.getHost(),peer.getFtpsPort());
+        ftpsClient.connect(peer.getHost(),peer.getFtpsPort());
+
+        try {
+            // dummy username and password, the certificate is the authenticator
+            if(!ftpsClient.login("plugh","cretin")) {
+                throw new IOException("Peer's FTPServer rejected the login: "+ftpsClient.getReplyString());
+            }
+            ftpsClient.execPBSZ(0);
+            ftpsClient.execPROT("P");
+            ftpsClient.enterLocalPassiveMode();
+            ftpsClient.setFileTransferMode(FTP.STREAM_TRANSFER_MODE);
+            ftpsClient.setFileType(FTP.BINARY_FILE_TYPE);
+            if(compression) {
+                // commons-net doesn't know MODE Z, ask for it and deflate the stream ourselves
+                ftpsClient.setDeflate(FTPReply.isPositiveCompletion(ftpsClient.sendCommand("MODE", "Z")));
+                log.debug("Peer {}:{} {} MODE Z",peer.getHost(),peer.getFtpsPort(),ftpsClient.isDeflate() ? "accepted" : "declined");
+            }
+        } catch(IOException ex) {
+            closeQuietly(ftpsClient);
+            throw ex;
+        }
+
+        return new DefaultPooledObject<>(ftpsClient);
+    }
+
+    private PeerFTPSClient makeFTPSClient() {
+        PeerFTPSClient ftpsClient = new PeerFTPSClient(sslContext);
+        ftpsClient.setConnectTimeout(connectTimeoutMillis);
+        ftpsClient.setReuseDataSession(reuseDataSession);
+        ftpsClient.setHandshakes(sslContextRegistry);
+        return ftpsClient;
+    }
+
+    @Override
+    public void destroyObject(PeerInfo peer, PooledObject<PeerFTPSClient> p) throws Exception {
+        closeQuietly(p.getObject());
+    }
+
+    @Override
+    public boolean validateObject(PeerInfo peer, PooledObject<PeerFTPSClient> p) {
+        PeerFTPSClient ftpsClient = p.getObject();
+        if(!ftpsClient.isConnected()) {
+            return false;
+        }
+        // a session that just finished a transfer doesn't need another round trip
+        if(p.getIdleDuration().compareTo(validateAfterIdle) < 0) {
+            return true;
+        }
+        try {
+            return ftpsClient.sendNoOp();
+        } catch(IOException ex) {
+            log.debug("NOOP to {}:{} failed: {}",peer.getHost(),peer.getFtpsPort(),ex.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void activateObject(PeerInfo peer, PooledObject<PeerFTPSClient> p) throws Exception {
+    }
+
+    @Override
+    public void passivateObject(PeerInfo peer, PooledObject<PeerFTPSClient> p) throws Exception {
+    }
+
+    private void closeQuietly(PeerFTPSClient ftpsClient) {
+        if (!ftpsClient.isConnected()) {
+            return;
+        }
+        try {
+            ftpsClient.logout();
+        } catch(IOException ex) {
+            log.debug("Exception logging out of FTPS session: {}",ex.getMessage());
+        }
+        try {
+            ftpsClient.disconnect();
+        } catch(IOException ex) {
+            log.debug("Exception closing FTPS session: {}",ex.getMessage());
+        }
+    }
+}
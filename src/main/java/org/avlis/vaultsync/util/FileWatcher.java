@@ -0,0 +1,90 @@
+package org.avlis.vaultsync.util;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs a callback on its own daemon thread once a file has changed and
+ * then gone quietMillis without changing again, so a save done in several
+ * writes is only acted on once, whole.
+ */
+@Slf4j
+public class FileWatcher implements Closeable {
+
+    private final Path file;
+    private final long quietNanos;
+    private final Runnable onChange;
+    private final WatchService watchService;
+
+    public FileWatcher(Path file, long quietMillis, String threadName, Runnable onChange) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.onChange = onChange;
+
+        watchService = this.file.getFileSystem().newWatchService();
+        try {
+            // editors often replace the file, watch the directory rather than the file
+            this.file.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch(IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+
+        Thread watcher = new Thread(this::watch, threadName);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch() {
+        try {
+            while(true) {
+                if(!isChange(watchService.take())) {
+                    continue;
+                }
+                long quietAt = System.nanoTime() + quietNanos;
+                long wait;
+                while((wait = quietAt - System.nanoTime()) > 0) {
+                    WatchKey key = watchService.poll(wait, TimeUnit.NANOSECONDS);
+                    if(key == null) {
+                        break;
+                    }
+                    if(isChange(key)) {
+                        quietAt = System.nanoTime() + quietNanos;
+                    }
+                }
+                try {
+                    onChange.run();
+                } catch(RuntimeException ex) {
+                    log.error("Handling a change to {} failed",file,ex);
+                }
+            }
+        } catch(InterruptedException | ClosedWatchServiceException ex) {
+            log.debug("Stopped watching {}",file);
+        }
+    }
+
+    /**
+     * Whether the key's events include the file, other files share its directory
+     */
+    private boolean isChange(WatchKey key) {
+        boolean changed = false;
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
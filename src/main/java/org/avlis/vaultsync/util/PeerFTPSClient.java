@@ -0,0 +1,140 @@
+package org.avlis.vaultsync.util;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Locale;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.net.ftp.FTPSClient;
+import org.avlis.vaultsync.security.SslContextRegistry;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An FTPS control session to a peer along with what was negotiated when it
+ * was opened.  Sessions are pooled so this state outlives a single transfer.
+ */
+@Slf4j
+public class PeerFTPSClient extends FTPSClient {
+
+    // the JDK release whose session cache _prepareDataSocket_ was checked against
+    private static final int CHECKED_RELEASE = 17;
+
+    // set once the JDK's session cache turned out to be out of reach
+    private static volatile boolean sessionReuseUnavailable = false;
+
+    // the peer accepted MODE Z, uploads must be deflated
+    @Getter
+    @Setter
+    private boolean deflate = false;
+
+    // offer the control channel's TLS session on every data connection
+    @Getter
+    @Setter
+    private boolean reuseDataSession = false;
+
+    // counts the control and data connection handshakes, optional
+    @Setter
+    private SslContextRegistry handshakes = null;
+
+    public PeerFTPSClient(SSLContext sslContext) {
+        super(sslContext);
+    }
+
+    @Override
+    protected void sslNegotiation() throws IOException {
+        long startedMillis = System.currentTimeMillis();
+        super.sslNegotiation();
+        if(handshakes != null) {
+            handshakes.recordHandshake(_socket_, startedMillis);
+        }
+    }
+
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        long startedMillis = System.currentTimeMillis();
+        // FTPSClient has finished the data connection's handshake when it returns
+        Socket socket = super._openDataConnection_(command, arg);
+        if(handshakes != null) {
+            handshakes.recordHandshake(socket, startedMillis);
+        }
+        return socket;
+    }
+
+    /**
+     * The JDK only offers a cached session to a socket connecting to the host
+     * and port it was cached under, and every passive data connection goes to
+     * a new port.  File the control connection's resumable session under the
+     * data connection's address so the data handshake resumes it instead of
+     * starting over.  Under TLS 1.3 that's the ticket the peer sent on the
+     * control connection rather than the control session itself.
+     *
+     * This writes into SSLSessionContextImpl.sessionHostPortCache, a private
+     * field of the JDK, so it's off unless ftps.client.reuseDataSession is
+     * set.  Our own FtpServer doesn't require the reuse, it only saves a
+     * handshake per data connection.  It was checked against JDK 17 (17.0.9)
+     * and is skipped on any other feature release, since a JDK that keeps
+     * the field but changes what it holds wouldn't fail, it would misbehave.
+     *
+     * The boot jar's manifest opens the packages involved, anything else
+     * launching the app needs --add-opens java.base/sun.security.ssl=ALL-UNNAMED
+     * and --add-opens java.base/sun.security.util=ALL-UNNAMED or the data
+     * connections just do a full handshake.
+     */
+    @Override
+    protected void _prepareDataSocket_(Socket socket) {
+        if(!reuseDataSession || sessionReuseUnavailable || !(_socket_ instanceof SSLSocket) || !(socket instanceof SSLSocket)) {
+            return;
+        }
+        if(Runtime.version().feature() != CHECKED_RELEASE) {
+            sessionReuseUnavailable = true;
+            log.warn("FTPS data session reuse was only checked on JDK {}, data connections on JDK {} do full handshakes",CHECKED_RELEASE,Runtime.version().feature());
+            return;
+        }
+        SSLSession control = ((SSLSocket) _socket_).getSession();
+        if(!control.isValid() || !(socket.getRemoteSocketAddress() instanceof InetSocketAddress)) {
+            return;
+        }
+        InetSocketAddress address = (InetSocketAddress) socket.getRemoteSocketAddress();
+        SSLSessionContext sessions = control.getSessionContext();
+        try {
+            Field cacheField = sessions.getClass().getDeclaredField("sessionHostPortCache");
+            cacheField.setAccessible(true);
+            Object cache = cacheField.get(sessions);
+            Method get = cache.getClass().getMethod("get", Object.class);
+            Method put = cache.getClass().getMethod("put", Object.class, Object.class);
+            get.setAccessible(true);
+            put.setAccessible(true);
+
+            Object resumable = get.invoke(cache, cacheKey(control.getPeerHost(), control.getPeerPort()));
+            if(resumable == null) {
+                if("TLSv1.3".equals(control.getProtocol())) {
+                    // no ticket yet, and a 1.3 session can't be resumed without one
+                    return;
+                }
+                resumable = control;
+            }
+            put.invoke(cache, cacheKey(address.getHostString(), address.getPort()), resumable);
+            if(address.getAddress() != null) {
+                put.invoke(cache, cacheKey(address.getAddress().getHostAddress(), address.getPort()), resumable);
+            }
+        } catch(ReflectiveOperationException | RuntimeException ex) {
+            sessionReuseUnavailable = true;
+            log.warn("FTPS data connections can't reuse the control session, they'll do full handshakes: {}",ex.toString());
+        }
+    }
+
+    // how SSLSessionContextImpl keys its host and port cache
+    private static String cacheKey(String host, int port) {
+        return (host+":"+port).toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -5,12 +5,16 @@ import org.apache.commons.pool2.PooledObjectFactory;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 import org.avlis.vaultsync.config.CommonConfig;
 import org.avlis.vaultsync.config.FTPSClientConfig;
-import org.avlis.vaultsync.config.KeystoreConfig;
 import org.avlis.vaultsync.config.SenderConfig;
+import org.avlis.vaultsync.services.FTPSSessionPool;
+import org.avlis.vaultsync.services.PeerCircuitBreakers;
 import org.avlis.vaultsync.services.SendClient;
+import org.avlis.vaultsync.services.TransferJournal;
+import org.avlis.vaultsync.services.TransferMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.stereotype.*;
+import org.springframework.web.client.RestTemplate;
 
 @Service
 public class SendClientPoolFactory implements PooledObjectFactory<SendClient> {
@@ -19,23 +23,33 @@ public class SendClientPoolFactory implements PooledObjectFactory<SendClient> {
     private CommonConfig commonConfig;
     private SenderConfig senderConfig;
     private ChecksumUtil checksumUtil;
-    private KeystoreConfig keystoreConfig;
-    private RestTemplateBuilder restTemplateBuilder;
+    private FTPSSessionPool sessionPool;
+    private TransferJournal journal;
+    private PeerCircuitBreakers breakers;
+    private TransferMetrics metrics;
+    private RestTemplate restTemplate;
 
     @Autowired
     public SendClientPoolFactory(   FTPSClientConfig ftpsClientConfig,
                                     CommonConfig commonConfig,
                                     SenderConfig senderConfig,
                                     ChecksumUtil checksumUtil,
-                                    KeystoreConfig keystoreConfig,
+                                    FTPSSessionPool sessionPool,
+                                    TransferJournal journal,
+                                    PeerCircuitBreakers breakers,
+                                    TransferMetrics metrics,
                                     RestTemplateBuilder restTemplateBuilder)
     {
         this.ftpsClientConfig = ftpsClientConfig;
         this.commonConfig = commonConfig;
         this.senderConfig = senderConfig;
         this.checksumUtil = checksumUtil;
-        this.keystoreConfig = keystoreConfig;
-        this.restTemplateBuilder = restTemplateBuilder;
+        this.sessionPool = sessionPool;
+        this.journal = journal;
+        this.breakers = breakers;
+        this.metrics = metrics;
+        // RestTemplate is thread safe and its connection pool is shared
+        this.restTemplate = restTemplateBuilder.build();
     }
 
     @Override
@@ -50,7 +64,7 @@ public class SendClientPoolFactory implements PooledObjectFactory<SendClient> {
 
     @Override
     public PooledObject<SendClient> makeObject() throws Exception {
-        return new DefaultPooledObject<SendClient>(new SendClient(ftpsClientConfig,commonConfig,senderConfig,checksumUtil,keystoreConfig,restTemplateBuilder));
+        return new DefaultPooledObject<SendClient>(new SendClient(ftpsClientConfig,commonConfig,senderConfig,checksumUtil,sessionPool,journal,breakers,metrics,restTemplate));
     }
 
     @Override
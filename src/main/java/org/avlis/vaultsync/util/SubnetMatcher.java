@@ -0,0 +1,318 @@
+package org.avlis.vaultsync.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A receiver.subnet list compiled once into masked IPv4 and IPv6 networks.
+ * matches() parses the remote address in place and compares it against
+ * each network with a mask, nothing is allocated per call.  The lists are
+ * a handful of entries so a scan beats a trie here.
+ *
+ * Like IpAddressMatcher an IPv4-mapped IPv6 address (::ffff:a.b.c.d) is
+ * treated as the IPv4 address, and hostnames aren't accepted.
+ */
+public final class SubnetMatcher {
+
+    private final String subnet;
+    private final boolean matchAll;
+    // network, mask pairs
+    private final int[] ipv4;
+    // high network, low network, high mask, low mask
+    private final long[] ipv6;
+
+    private SubnetMatcher(String subnet, boolean matchAll, int[] ipv4, long[] ipv6) {
+        this.subnet = subnet;
+        this.matchAll = matchAll;
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+    }
+
+    /**
+     * @param subnet disabled, or a comma separated list of addresses and CIDR masks
+     * @throws IllegalArgumentException when an entry isn't an IP address or mask
+     */
+    public static SubnetMatcher compile(String subnet) {
+        if(subnet.trim().equalsIgnoreCase("disabled")) {
+            return new SubnetMatcher(subnet, true, new int[0], new long[0]);
+        }
+
+        List<Integer> ipv4 = new ArrayList<>();
+        List<Long> ipv6 = new ArrayList<>();
+        for(String entry : subnet.split(",")) {
+            entry = entry.trim();
+            if(entry.isEmpty()) {
+                continue;
+            }
+            int slash = entry.indexOf('/');
+            String address = slash < 0 ? entry : entry.substring(0, slash);
+            int bits = slash < 0 ? -1 : parseBits(entry, entry.substring(slash + 1));
+
+            if(address.indexOf(':') < 0) {
+                long parsed = parseIpv4(address, 0, address.length());
+                if(parsed < 0) {
+                    throw new IllegalArgumentException(entry+" is not an IP address or mask");
+                }
+                addIpv4(ipv4, entry, (int) parsed, bits < 0 ? 32 : bits);
+                continue;
+            }
+
+            int groups = ipv6Groups(address, address.length());
+            if(groups < 0) {
+                throw new IllegalArgumentException(entry+" is not an IP address or mask");
+            }
+            long high = ipv6Half(address, address.length(), groups, true);
+            long low = ipv6Half(address, address.length(), groups, false);
+            if(isIpv4Mapped(high, low) && (bits < 0 || bits >= 96)) {
+                addIpv4(ipv4, entry, (int) low, bits < 0 ? 32 : bits - 96);
+                continue;
+            }
+            if(bits < 0) {
+                bits = 128;
+            } else
+            if(bits > 128) {
+                throw new IllegalArgumentException(entry+" has more than 128 mask bits");
+            }
+            long highMask = bits >= 64 ? -1L : bits == 0 ? 0L : -1L << (64 - bits);
+            long lowMask = bits <= 64 ? 0L : -1L << (128 - bits);
+            ipv6.add(high & highMask);
+            ipv6.add(low & lowMask);
+            ipv6.add(highMask);
+            ipv6.add(lowMask);
+        }
+
+        return new SubnetMatcher(subnet, false,
+            ipv4.stream().mapToInt(Integer::intValue).toArray(),
+            ipv6.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    private static int parseBits(String entry, String bits) {
+        try {
+            int parsed = Integer.parseInt(bits);
+            if(parsed >= 0) {
+                return parsed;
+            }
+        } catch(NumberFormatException ex) {
+            // reported below
+        }
+        throw new IllegalArgumentException(entry+" has an invalid mask length");
+    }
+
+    private static void addIpv4(List<Integer> ipv4, String entry, int address, int bits) {
+        if(bits > 32) {
+            throw new IllegalArgumentException(entry+" has more than 32 mask bits");
+        }
+        int mask = bits == 0 ? 0 : -1 << (32 - bits);
+        ipv4.add(address & mask);
+        ipv4.add(mask);
+    }
+
+    /**
+     * @param address a remote address as returned by getRemoteAddr()
+     */
+    public boolean matches(String address) {
+        if(matchAll) {
+            return true;
+        }
+        if(address == null) {
+            return false;
+        }
+        if(address.indexOf(':') < 0) {
+            long parsed = parseIpv4(address, 0, address.length());
+            return parsed >= 0 && matchesIpv4((int) parsed);
+        }
+
+        // drop the zone, eg. fe80::1%eth0
+        int end = address.indexOf('%');
+        if(end < 0) {
+            end = address.length();
+        }
+        int groups = ipv6Groups(address, end);
+        if(groups < 0) {
+            return false;
+        }
+        long high = ipv6Half(address, end, groups, true);
+        long low = ipv6Half(address, end, groups, false);
+        if(isIpv4Mapped(high, low)) {
+            return matchesIpv4((int) low);
+        }
+        for(int i = 0; i < ipv6.length; i += 4) {
+            if((high & ipv6[i + 2]) == ipv6[i] && (low & ipv6[i + 3]) == ipv6[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesIpv4(int address) {
+        for(int i = 0; i < ipv4.length; i += 2) {
+            if((address & ipv4[i + 1]) == ipv4[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIpv4Mapped(long high, long low) {
+        return high == 0 && (low >>> 32) == 0xffffL;
+    }
+
+    /**
+     * @return the dotted quad in s[from,to) as an unsigned int, -1 if it isn't one
+     */
+    private static long parseIpv4(String s, int from, int to) {
+        long address = 0;
+        int octets = 0;
+        int i = from;
+        while(true) {
+            int value = 0;
+            int digits = 0;
+            while(i < to && digits < 4) {
+                char c = s.charAt(i);
+                if(c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if(digits == 0 || digits > 3 || value > 255) {
+                return -1;
+            }
+            address = (address << 8) | value;
+            octets++;
+            if(i == to) {
+                break;
+            }
+            if(s.charAt(i) != '.' || octets == 4) {
+                return -1;
+            }
+            i++;
+        }
+        return octets == 4 ? address : -1;
+    }
+
+    /**
+     * Checks the IPv6 address in s[0,to)
+     * @return how many 16 bit groups are written out, an embedded IPv4
+     *         address counts as two, -1 if it isn't an IPv6 address
+     */
+    private static int ipv6Groups(String s, int to) {
+        int groups = 0;
+        boolean compressed = false;
+        int i = 0;
+        if(to >= 2 && s.charAt(0) == ':' && s.charAt(1) == ':') {
+            compressed = true;
+            i = 2;
+        } else
+        if(to == 0 || s.charAt(0) == ':') {
+            return -1;
+        }
+        while(i < to) {
+            int start = i;
+            while(i < to && hexDigit(s.charAt(i)) >= 0) {
+                i++;
+            }
+            if(i < to && s.charAt(i) == '.') {
+                // an embedded IPv4 address ends the address
+                if(parseIpv4(s, start, to) < 0) {
+                    return -1;
+                }
+                groups += 2;
+                break;
+            }
+            if(i == start || i - start > 4) {
+                return -1;
+            }
+            groups++;
+            if(i == to) {
+                break;
+            }
+            if(s.charAt(i) != ':') {
+                return -1;
+            }
+            i++;
+            if(i < to && s.charAt(i) == ':') {
+                if(compressed) {
+                    return -1;
+                }
+                compressed = true;
+                i++;
+            } else
+            if(i == to) {
+                return -1;
+            }
+        }
+        if(compressed ? groups > 7 : groups != 8) {
+            return -1;
+        }
+        return groups;
+    }
+
+    /**
+     * The high or low 64 bits of an address ipv6Groups() accepted
+     */
+    private static long ipv6Half(String s, int to, int groups, boolean high) {
+        long half = 0;
+        int index = 0;
+        int i = 0;
+        while(i < to) {
+            if(s.charAt(i) == ':') {
+                // the :: stands in for the groups that aren't written out
+                i += i == 0 ? 2 : 1;
+                index += 8 - groups;
+                continue;
+            }
+            int start = i;
+            int value = 0;
+            int digit;
+            while(i < to && (digit = hexDigit(s.charAt(i))) >= 0) {
+                value = (value << 4) | digit;
+                i++;
+            }
+            if(i < to && s.charAt(i) == '.') {
+                long ipv4 = parseIpv4(s, start, to);
+                half = place(half, index++, (int) (ipv4 >>> 16), high);
+                half = place(half, index, (int) (ipv4 & 0xffff), high);
+                break;
+            }
+            half = place(half, index++, value, high);
+            if(i < to) {
+                // the group's trailing colon
+                i++;
+            }
+        }
+        return half;
+    }
+
+    /**
+     * Character.digit() would also take non-ASCII digits
+     */
+    private static int hexDigit(char c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if(c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static long place(long half, int index, int group, boolean high) {
+        if(high && index < 4) {
+            return half | ((long) group << (16 * (3 - index)));
+        }
+        if(!high && index >= 4) {
+            return half | ((long) group << (16 * (7 - index)));
+        }
+        return half;
+    }
+
+    @Override
+    public String toString() {
+        return subnet;
+    }
+}
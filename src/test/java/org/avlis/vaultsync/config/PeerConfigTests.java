@@ -0,0 +1,175 @@
+package org.avlis.vaultsync.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.avlis.vaultsync.config.PeerConfig.Changes;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PeerConfigTests {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void reloadSortsPeersIntoAddedChangedAndRemoved() {
+		PeerConfig peerConfig = new PeerConfig();
+		PeerInfo one = peer("one.example.com");
+		PeerInfo two = peer("two.example.com");
+		PeerInfo three = peer("three.example.com");
+		peerConfig.setPeers(peers("one", one, "two", two, "three", three));
+
+		PeerInfo twoMoved = peer("two.example.com");
+		twoMoved.setFtpsPort(2222);
+		PeerInfo four = peer("four.example.com");
+		Changes changes = peerConfig.replacePeers(peers("one", peer("one.example.com"), "two", twoMoved, "four", four));
+
+		assertEquals(1, changes.getUnchanged());
+		assertEquals(Map.of("four", four), changes.getAdded());
+		assertEquals(Map.of("two", two), changes.getChanged());
+		assertEquals(Map.of("three", three), changes.getRemoved());
+		assertEquals(List.of(three, two), changes.getRetired());
+		assertEquals("1 added, 1 changed, 1 removed, 1 unchanged", changes.toString());
+
+		// unchanged peers keep their instance, and with it their sessions and breaker
+		assertSame(one, peerConfig.getPeers().get("one"));
+		assertSame(twoMoved, peerConfig.getPeers().get("two"));
+		assertSame(four, peerConfig.getPeers().get("four"));
+		assertFalse(peerConfig.getPeers().containsKey("three"));
+
+		assertTrue(peerConfig.isKnownPeer("four.example.com"));
+		assertFalse(peerConfig.isKnownPeer("three.example.com"));
+	}
+
+	@Test
+	void firstLoadAddsEverything() {
+		PeerConfig peerConfig = new PeerConfig();
+		PeerInfo one = peer("one.example.com");
+
+		Changes changes = peerConfig.replacePeers(peers("one", one));
+
+		assertEquals(Map.of("one", one), changes.getAdded());
+		assertTrue(changes.getRetired().isEmpty());
+		assertTrue(peerConfig.isKnownPeer("one.example.com"));
+	}
+
+	@Test
+	void sameAsComparesEverySetting() {
+		PeerInfo base = peer("one.example.com");
+		base.setPrimaryName("one");
+		base.setMaxInFlight(4);
+
+		assertTrue(base.sameAs(copy(base, peer -> {})));
+		assertFalse(base.sameAs(null));
+		assertFalse(base.sameAs(copy(base, peer -> peer.setHost("other.example.com"))));
+		assertFalse(base.sameAs(copy(base, peer -> peer.setPrimaryName(null))));
+		assertFalse(base.sameAs(copy(base, peer -> peer.setRestPort(8444))));
+		assertFalse(base.sameAs(copy(base, peer -> peer.setFtpsPort(2222))));
+		assertFalse(base.sameAs(copy(base, peer -> peer.setEnabled(false))));
+		assertFalse(base.sameAs(copy(base, peer -> peer.setMaxInFlight(null))));
+	}
+
+	@Test
+	void disabledPeersAreNotKnown() {
+		PeerConfig peerConfig = new PeerConfig();
+		PeerInfo disabled = peer("off.example.com");
+		disabled.setEnabled(false);
+		disabled.setPrimaryName("off");
+		PeerInfo enabled = peer("on.example.com");
+		enabled.setPrimaryName("on");
+		peerConfig.setPeers(peers("off", disabled, "on", enabled));
+
+		assertTrue(peerConfig.isKnownPeer("on.example.com"));
+		assertTrue(peerConfig.isKnownPeer("on"));
+		assertFalse(peerConfig.isKnownPeer("off.example.com"));
+		assertFalse(peerConfig.isKnownPeer("off"));
+	}
+
+	@Test
+	void readsPeersAndSubnetFromPeersFile() throws Exception {
+		PeerConfig peerConfig = peersFile(String.join("\n",
+			"peers:",
+			"  one:",
+			"    host: one.example.com",
+			"    restPort: 8443",
+			"    ftpsPort: 2221",
+			"    enabled: true",
+			"receiver:",
+			"  subnet: 127.0.0.1,10.0.0.0/8",
+			""));
+
+		PeerConfig.PeersFile file = peerConfig.readPeersFile();
+
+		assertEquals("127.0.0.1,10.0.0.0/8", file.getSubnet());
+		assertEquals("one.example.com", file.getPeers().get("one").getHost());
+		assertEquals(2221, file.getPeers().get("one").getFtpsPort());
+	}
+
+	@Test
+	void rejectsAnInvalidPeersFile() throws Exception {
+		PeerConfig missingPort = peersFile(String.join("\n",
+			"peers:",
+			"  one:",
+			"    host: one.example.com",
+			"    restPort: 8443",
+			"    enabled: true",
+			""));
+		IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, missingPort::readPeersFile);
+		assertTrue(ex.getMessage().startsWith("peers.one.ftpsPort"), ex.getMessage());
+
+		PeerConfig badSubnet = peersFile(String.join("\n",
+			"peers:",
+			"  one:",
+			"    host: one.example.com",
+			"    restPort: 8443",
+			"    ftpsPort: 2221",
+			"    enabled: true",
+			"receiver:",
+			"  subnet: 10.0.0.0/33",
+			""));
+		ex = assertThrows(IllegalArgumentException.class, badSubnet::readPeersFile);
+		assertTrue(ex.getMessage().startsWith("receiver.subnet"), ex.getMessage());
+	}
+
+	private PeerConfig peersFile(String yml) throws Exception {
+		Path file = Files.writeString(Files.createTempFile(tempDir, "peers", ".yml"), yml);
+		PeerConfig peerConfig = new PeerConfig();
+		peerConfig.setPeersFile(file.toString());
+		return peerConfig;
+	}
+
+	private static PeerInfo peer(String host) {
+		PeerInfo peer = new PeerInfo();
+		peer.setHost(host);
+		peer.setRestPort(8443);
+		peer.setFtpsPort(2221);
+		peer.setEnabled(true);
+		return peer;
+	}
+
+	private static PeerInfo copy(PeerInfo from, Consumer<PeerInfo> change) {
+		PeerInfo peer = peer(from.getHost());
+		peer.setPrimaryName(from.getPrimaryName());
+		peer.setRestPort(from.getRestPort());
+		peer.setFtpsPort(from.getFtpsPort());
+		peer.setEnabled(from.getEnabled());
+		peer.setMaxInFlight(from.getMaxInFlight());
+		change.accept(peer);
+		return peer;
+	}
+
+	private static Map<String, PeerInfo> peers(Object... namesAndPeers) {
+		Map<String, PeerInfo> peers = new LinkedHashMap<>();
+		for(int i = 0; i < namesAndPeers.length; i += 2) {
+			peers.put((String) namesAndPeers[i], (PeerInfo) namesAndPeers[i + 1]);
+		}
+		return peers;
+	}
+}
@@ -0,0 +1,59 @@
+package org.avlis.vaultsync.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class RetryPolicyTests {
+
+	@Test
+	void backoffGrowsByTheMultiplierWithJitter() {
+		RetryPolicy policy = policy(100L, 10_000L, 2.0);
+
+		for(int i = 0; i < 200; i++) {
+			assertBetween(50, 100, policy.backoffMillis(1));
+			assertBetween(100, 200, policy.backoffMillis(2));
+			assertBetween(200, 400, policy.backoffMillis(3));
+		}
+	}
+
+	@Test
+	void backoffIsCappedAtMaxDelay() {
+		RetryPolicy policy = policy(100L, 1000L, 3.0);
+
+		for(int i = 0; i < 200; i++) {
+			assertBetween(500, 1000, policy.backoffMillis(5));
+			assertBetween(500, 1000, policy.backoffMillis(50));
+		}
+	}
+
+	@Test
+	void noDelayStaysZero() {
+		RetryPolicy policy = policy(0L, 1000L, 2.0);
+
+		assertEquals(0, policy.backoffMillis(1));
+		assertEquals(0, policy.backoffMillis(4));
+	}
+
+	@Test
+	void multiplierOfOneKeepsTheDelay() {
+		RetryPolicy policy = policy(300L, 5000L, 1.0);
+
+		for(int i = 0; i < 200; i++) {
+			assertBetween(150, 300, policy.backoffMillis(1));
+			assertBetween(150, 300, policy.backoffMillis(10));
+		}
+	}
+
+	private static RetryPolicy policy(Long initialDelay, Long maxDelay, Double multiplier) {
+		RetryPolicy policy = new RetryPolicy(3);
+		policy.setInitialDelay(initialDelay);
+		policy.setMaxDelay(maxDelay);
+		policy.setMultiplier(multiplier);
+		return policy;
+	}
+
+	private static void assertBetween(long low, long high, long actual) {
+		assertTrue(actual >= low && actual <= high, actual+" is not in ["+low+","+high+"]");
+	}
+}
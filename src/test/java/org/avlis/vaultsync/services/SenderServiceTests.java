@@ -0,0 +1,98 @@
+package org.avlis.vaultsync.services;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.avlis.vaultsync.config.CommonConfig;
+import org.avlis.vaultsync.config.PeerConfig;
+import org.avlis.vaultsync.config.PeerInfo;
+import org.avlis.vaultsync.config.ReceiverConfig;
+import org.avlis.vaultsync.models.TransferData;
+import org.avlis.vaultsync.models.TransferRequest;
+import org.avlis.vaultsync.util.CircuitBreaker;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+class SenderServiceTests {
+
+	private static final String CHAR_ID = "CDKEY:Name";
+
+	@TempDir
+	Path vault;
+
+	private final SendClientManager sendClientManager = mock(SendClientManager.class);
+	private SenderService senderService;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		Files.createDirectories(vault.resolve("login"));
+		Files.writeString(vault.resolve("login").resolve("file.bic"), "bic");
+
+		CommonConfig commonConfig = new CommonConfig();
+		commonConfig.setVaultPath(vault.toString());
+		ReceiverConfig receiverConfig = new ReceiverConfig();
+
+		PeerInfo peer = new PeerInfo();
+		peer.setHost("peer1.example.com");
+		peer.setRestPort(8443);
+		peer.setFtpsPort(990);
+		peer.setEnabled(true);
+		PeerConfig peerConfig = new PeerConfig();
+		peerConfig.setPeers(Map.of("peer1", peer));
+
+		PeerCircuitBreakers breakers = mock(PeerCircuitBreakers.class);
+		when(breakers.get(any())).thenReturn(new CircuitBreaker(5, 30000));
+		when(sendClientManager.scheduleTransfer(eq(CHAR_ID), any(), any(), any())).thenReturn(true);
+
+		senderService = new SenderService(commonConfig, peerConfig, receiverConfig, sendClientManager,
+			new TransferJournal(new CommonConfig(), receiverConfig), breakers);
+	}
+
+	@Test
+	void repeatTransferReportsItsOwnStatus() {
+		assertEquals(-1, senderService.addRequest(transferData()).getStatusCode());
+		finish(200);
+		assertEquals(200, senderService.getStatus(CHAR_ID, "peer1").getStatusCode());
+
+		// the same character again, equal to the finished request field for field
+		assertEquals(-1, senderService.addRequest(transferData()).getStatusCode());
+		assertEquals(-1, senderService.getStatus(CHAR_ID, "peer1").getStatusCode());
+
+		finish(500);
+		assertEquals(500, senderService.getStatus(CHAR_ID, "peer1").getStatusCode());
+	}
+
+	@Test
+	void inFlightTransferIsNotRepeated() {
+		assertEquals(-1, senderService.addRequest(transferData()).getStatusCode());
+		assertEquals(401, senderService.addRequest(transferData()).getStatusCode());
+		verify(sendClientManager, times(1)).scheduleTransfer(eq(CHAR_ID), any(), any(), any());
+	}
+
+	/**
+	 * Sets the status of the last scheduled request the way SendClient does
+	 */
+	private void finish(int statusCode) {
+		ArgumentCaptor<TransferRequest> scheduled = ArgumentCaptor.forClass(TransferRequest.class);
+		verify(sendClientManager, atLeastOnce()).scheduleTransfer(eq(CHAR_ID), any(), any(), scheduled.capture());
+		scheduled.getValue().getStatus().setStatusCode(statusCode);
+	}
+
+	private static TransferData transferData() {
+		TransferData transfer = new TransferData();
+		transfer.setCharacterName("Name");
+		transfer.setLoginName("login");
+		transfer.setCdkey("CDKEY");
+		transfer.setFileName("file");
+		transfer.setDestination("peer1");
+		return transfer;
+	}
+}
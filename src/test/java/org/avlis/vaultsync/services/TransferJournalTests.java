@@ -0,0 +1,176 @@
+package org.avlis.vaultsync.services;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import org.avlis.vaultsync.config.CommonConfig;
+import org.avlis.vaultsync.config.ReceiverConfig;
+import org.avlis.vaultsync.models.SyncData;
+import org.avlis.vaultsync.models.TransferData;
+import org.avlis.vaultsync.services.TransferJournal.Event;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class TransferJournalTests {
+
+	private static final int SYNC_TIMEOUT = 600;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void recoversOnlyLiveTransfers() throws Exception {
+		long now = System.currentTimeMillis();
+		List<Event> events = new ArrayList<>();
+		// finished on the receiving side
+		events.add(at(now, Event.syncStart("s1", syncData("A"), "peer1", false)));
+		events.add(at(now + 1, Event.syncEnd("s1")));
+		// a send keeps its end so the status can still be reported
+		events.add(at(now + 2, Event.sendStart("K1:One", transferData("One"))));
+		events.add(at(now + 3, Event.sendPeer("K1:One", "p1")));
+		events.add(at(now + 4, Event.sendEnd("K1:One", 200, "")));
+		// aborted
+		events.add(at(now + 5, Event.sendStart("K2:Two", transferData("Two"))));
+		events.add(at(now + 6, Event.sendRemoved("K2:Two")));
+		// a new request for the same character replaces the old one
+		events.add(at(now + 7, Event.sendStart("K3:Three", transferData("Three"))));
+		events.add(at(now + 8, Event.sendEnd("K3:Three", 500, "failed")));
+		events.add(at(now + 9, Event.sendStart("K3:Three", transferData("Three"))));
+		// expired
+		events.add(at(now - (SYNC_TIMEOUT + 60) * 1000L, Event.syncStart("s2", syncData("B"), "peer1", false)));
+		// still waiting for its upload
+		events.add(at(now + 10, Event.syncStart("s3", syncData("C"), "peer2", true)));
+		Path journal = writeJournal(events, "{\"type\":\"sync.sta");
+
+		TransferJournal transferJournal = new TransferJournal(commonConfig(journal), receiverConfig());
+		try {
+			assertEquals(List.of(
+					"send.start K1:One", "send.peer K1:One", "send.end K1:One",
+					"send.start K3:Three", "sync.start s3"),
+				describe(transferJournal.getRecovered()));
+
+			Event sync = transferJournal.getRecovered().get(4);
+			assertEquals("peer2", sync.getSender());
+			assertTrue(sync.getAlreadyPresent());
+			assertEquals("C", sync.getSync().getCharacterName());
+		} finally {
+			transferJournal.destroy();
+		}
+	}
+
+	@Test
+	void compactedJournalRecoversTheSame() throws Exception {
+		long now = System.currentTimeMillis();
+		Path journal = writeJournal(List.of(
+			at(now, Event.syncStart("s1", syncData("A"), "peer1", false)),
+			at(now + 1, Event.syncEnd("s1")),
+			at(now + 2, Event.syncStart("s2", syncData("B"), "peer1", false))), null);
+
+		TransferJournal first = new TransferJournal(commonConfig(journal), receiverConfig());
+		first.destroy();
+		assertEquals(1, Files.readAllLines(journal).size());
+
+		TransferJournal second = new TransferJournal(commonConfig(journal), receiverConfig());
+		try {
+			assertEquals(List.of("sync.start s2"), describe(second.getRecovered()));
+		} finally {
+			second.destroy();
+		}
+	}
+
+	@Test
+	void appendedEventsAreRecovered() throws Exception {
+		Path journal = tempDir.resolve("journal.log");
+
+		TransferJournal first = new TransferJournal(commonConfig(journal), receiverConfig());
+		assertTrue(first.getRecovered().isEmpty());
+		first.append(Event.sendStart("K1:One", transferData("One")));
+		first.append(Event.sendPeer("K1:One", "p1"));
+		first.append(Event.syncStart("s1", syncData("A"), "peer1", false));
+		first.append(Event.syncEnd("s1"));
+		// writes out whatever is still queued
+		first.destroy();
+
+		TransferJournal second = new TransferJournal(commonConfig(journal), receiverConfig());
+		try {
+			assertEquals(List.of("send.start K1:One", "send.peer K1:One"), describe(second.getRecovered()));
+			assertEquals("p1", second.getRecovered().get(1).getSyncId());
+		} finally {
+			second.destroy();
+		}
+	}
+
+	@Test
+	void disabledWithoutAPath() throws Exception {
+		TransferJournal transferJournal = new TransferJournal(new CommonConfig(), receiverConfig());
+
+		assertFalse(transferJournal.isEnabled());
+		transferJournal.append(Event.syncEnd("s1"));
+		assertTrue(transferJournal.getRecovered().isEmpty());
+		transferJournal.destroy();
+	}
+
+	private static Event at(long time, Event event) {
+		event.setTime(time);
+		return event;
+	}
+
+	private Path writeJournal(List<Event> events, String tornLine) throws Exception {
+		StringBuilder lines = new StringBuilder();
+		for(Event event : events) {
+			lines.append(mapper.writeValueAsString(event)).append('\n');
+		}
+		if(tornLine != null) {
+			lines.append(tornLine);
+		}
+		return Files.writeString(tempDir.resolve("journal.log"), lines, StandardCharsets.UTF_8);
+	}
+
+	private static List<String> describe(List<Event> events) {
+		return events.stream()
+			.map(event -> event.getType()+" "+event.getKey())
+			.collect(Collectors.toList());
+	}
+
+	private static CommonConfig commonConfig(Path journal) {
+		CommonConfig commonConfig = new CommonConfig();
+		commonConfig.setJournalPath(journal.toString());
+		return commonConfig;
+	}
+
+	private static ReceiverConfig receiverConfig() {
+		ReceiverConfig receiverConfig = new ReceiverConfig();
+		receiverConfig.setSyncTimeout(SYNC_TIMEOUT);
+		return receiverConfig;
+	}
+
+	private static SyncData syncData(String characterName) {
+		SyncData sync = new SyncData();
+		sync.setCharacterName(characterName);
+		sync.setLoginName("login");
+		sync.setCdkey("CDKEY");
+		sync.setFileName("file");
+		sync.setFileSize(3);
+		sync.setChecksum("abc");
+		return sync;
+	}
+
+	private static TransferData transferData(String characterName) {
+		TransferData transfer = new TransferData();
+		transfer.setCharacterName(characterName);
+		transfer.setLoginName("login");
+		transfer.setCdkey("CDKEY");
+		transfer.setFileName("file");
+		transfer.setDestination("peer1");
+		return transfer;
+	}
+}
@@ -0,0 +1,304 @@
+package org.avlis.vaultsync.services;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.avlis.vaultsync.config.ReceiverConfig;
+import org.avlis.vaultsync.config.ValidationQuery;
+import org.avlis.vaultsync.models.StartResults;
+import org.avlis.vaultsync.models.SyncData;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ValidationServiceTests {
+
+	private static final String JAIL = "FROM jail WHERE login = :login";
+	private static final String SERVERVARS = "FROM servervars WHERE world = :world";
+	private static final String BANNED = "FROM banned WHERE cdkey = :cdkey";
+
+	private final StubJdbcTemplate jdbc = new StubJdbcTemplate();
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private ValidationService service;
+
+	ValidationServiceTests() {
+		// the rule counts the stub answers with
+		jdbc.rule(JAIL, params -> "jailed".equals(params.getValue("login")) ? 1 : 0);
+		jdbc.rule(SERVERVARS, params -> "blocked".equals(params.getValue("world")) ? 1 : 0);
+		jdbc.rule(BANNED, params -> "BANNEDKEY".equals(params.getValue("cdkey")) ? 1 : 0);
+		jdbc.snapshot("SELECT cdkey FROM banned", List.of("cdkey"), List.<Object[]>of(new Object[] { "bannedkey" }));
+	}
+
+	@AfterEach
+	void destroy() {
+		if(service != null) {
+			service.destroy();
+		}
+	}
+
+	@Test
+	void batchesTheRulesIntoOneStatement() {
+		service = service(receiverConfig(true, "live", jail(0), servervars(0), banned(0)));
+
+		assertNull(service.check(syncData("free", "KEY"), "open"));
+		assertEquals(1, jdbc.statements.size());
+		assertEquals("SELECT 0 AS rule, count(*) AS matches "+JAIL
+			+" UNION ALL SELECT 1 AS rule, count(*) AS matches "+SERVERVARS
+			+" UNION ALL SELECT 2 AS rule, count(*) AS matches "+BANNED, jdbc.statements.get(0));
+
+		// every rule ran, the first one that matched decides
+		StartResults results = service.check(syncData("jailed", "BANNEDKEY"), "blocked");
+		assertEquals(2, jdbc.statements.size());
+		assertEquals(401, results.getStatusCode());
+		assertEquals("jailed", results.getErrorMessage());
+
+		results = service.check(syncData("free", "BANNEDKEY"), "blocked");
+		assertEquals("blocked", results.getErrorMessage());
+	}
+
+	@Test
+	void unbatchedRunsEachRule() {
+		service = service(receiverConfig(false, "live", jail(0), servervars(0), banned(0)));
+
+		assertNull(service.check(syncData("free", "KEY"), "open"));
+		assertEquals(List.of("SELECT count(*) "+JAIL, "SELECT count(*) "+SERVERVARS, "SELECT count(*) "+BANNED),
+			jdbc.statements);
+
+		StartResults results = service.check(syncData("free", "BANNEDKEY"), "blocked");
+		assertEquals("blocked", results.getErrorMessage());
+	}
+
+	@Test
+	void cachesByTheParametersTheRuleUses() {
+		service = service(receiverConfig(true, "live", jail(60)));
+
+		assertNull(service.check(syncData("free", "KEY1"), "open"));
+		// the rule only uses :login
+		assertNull(service.check(syncData("free", "KEY2"), "elsewhere"));
+		assertEquals(1, jdbc.statements.size());
+		assertEquals("jailed", service.check(syncData("jailed", "KEY1"), "open").getErrorMessage());
+		assertEquals("jailed", service.check(syncData("jailed", "KEY1"), "open").getErrorMessage());
+		assertEquals(2, jdbc.statements.size());
+
+		assertEquals(2, service.getCacheStatus().getHits());
+		assertEquals(2, service.getCacheStatus().getMisses());
+		assertEquals(2, service.getCacheStatus().getSize());
+		assertEquals(2, registry.get(ValidationService.CACHE).tag("result", "hit").functionCounter().count());
+		assertEquals(2, registry.get(ValidationService.CACHE).tag("result", "miss").functionCounter().count());
+
+		assertEquals(1, service.invalidate("jailed"));
+		assertEquals("jailed", service.check(syncData("jailed", "KEY1"), "open").getErrorMessage());
+		assertEquals(3, jdbc.statements.size());
+	}
+
+	@Test
+	void snapshotRulesSkipTheDatabase() {
+		service = service(receiverConfig(true, "snapshot", banned(0)));
+		service.refreshSnapshots();
+
+		// matched case insensitively
+		assertEquals("banned", service.check(syncData("free", "BANNEDKEY"), "open").getErrorMessage());
+		assertNull(service.check(syncData("free", "KEY"), "open"));
+		assertTrue(jdbc.statements.isEmpty());
+		assertEquals(1, service.getSnapshotStatus().get(0).getRows());
+	}
+
+	@Test
+	void liveModeIgnoresSnapshots() {
+		service = service(receiverConfig(true, "live", banned(0)));
+
+		assertEquals("banned", service.check(syncData("free", "BANNEDKEY"), "open").getErrorMessage());
+		assertEquals(1, jdbc.statements.size());
+		assertEquals(0, jdbc.snapshotLoads());
+	}
+
+	@Test
+	void firstMatchingRuleWinsAcrossSources() {
+		// batched, cached and snapshot rules in that order
+		service = service(receiverConfig(true, "snapshot", jail(0), servervars(60), banned(0)));
+		service.refreshSnapshots();
+
+		// the snapshot rule matches, the others still run and the first wins
+		assertEquals("jailed", service.check(syncData("jailed", "BANNEDKEY"), "blocked").getErrorMessage());
+		assertEquals(List.of("SELECT 0 AS rule, count(*) AS matches "+JAIL
+			+" UNION ALL SELECT 1 AS rule, count(*) AS matches "+SERVERVARS), jdbc.statements);
+
+		// a cached match stops the scan but the earlier rule still runs
+		assertEquals("jailed", service.check(syncData("jailed", "KEY"), "blocked").getErrorMessage());
+		assertEquals("SELECT 0 AS rule, count(*) AS matches "+JAIL, jdbc.statements.get(1));
+
+		// the earlier rule didn't match so the cached one decides
+		assertEquals("blocked", service.check(syncData("free", "BANNEDKEY"), "blocked").getErrorMessage());
+		assertEquals(3, jdbc.statements.size());
+
+		// nothing before the snapshot rule matched
+		assertEquals("banned", service.check(syncData("free", "BANNEDKEY"), "open").getErrorMessage());
+		assertNull(service.check(syncData("free", "KEY"), "open"));
+	}
+
+	private ValidationService service(ReceiverConfig receiverConfig) {
+		return new ValidationService(receiverConfig, jdbc, new TransferMetrics(registry));
+	}
+
+	private static ReceiverConfig receiverConfig(boolean batch, String mode, ValidationQuery... queries) {
+		ReceiverConfig receiverConfig = new ReceiverConfig();
+		receiverConfig.setValidationQueries(List.of(queries));
+		receiverConfig.setBatchValidationQueries(batch);
+		receiverConfig.setValidationMode(mode);
+		// only the explicit refreshSnapshots() after the first load
+		receiverConfig.setSnapshotRefresh(3600);
+		return receiverConfig;
+	}
+
+	private static ValidationQuery jail(int cacheTtl) {
+		return query(JAIL, cacheTtl, 401, "jailed", null);
+	}
+
+	private static ValidationQuery servervars(int cacheTtl) {
+		return query(SERVERVARS, cacheTtl, 403, "blocked", null);
+	}
+
+	private static ValidationQuery banned(int cacheTtl) {
+		return query(BANNED, cacheTtl, 403, "banned", "SELECT cdkey FROM banned");
+	}
+
+	private static ValidationQuery query(String query, int cacheTtl, int code, String reason, String snapshotQuery) {
+		ValidationQuery q = new ValidationQuery();
+		q.setQuery(query);
+		q.setCacheTtl(cacheTtl);
+		q.setRejectionCode(code);
+		q.setRejectionReason(reason);
+		q.setSnapshotQuery(snapshotQuery);
+		return q;
+	}
+
+	private static SyncData syncData(String login, String cdkey) {
+		SyncData sync = new SyncData();
+		sync.setCharacterName("Name");
+		sync.setLoginName(login);
+		sync.setCdkey(cdkey);
+		return sync;
+	}
+
+	/**
+	 * Answers the counting statements ValidationService builds from the
+	 * rule's FROM clause, and snapshot queries from fixed rows.  Records
+	 * every counting statement it's sent.
+	 */
+	private static class StubJdbcTemplate extends NamedParameterJdbcTemplate {
+
+		private static final Pattern TAGGED = Pattern.compile("SELECT (\\d+) AS rule, count\\(\\*\\) AS matches (.*)");
+		private static final Pattern COUNT = Pattern.compile("SELECT count\\(\\*\\) (.*)");
+
+		final List<String> statements = new CopyOnWriteArrayList<>();
+		private final Map<String, ToIntFunction<SqlParameterSource>> rules = new HashMap<>();
+
+		StubJdbcTemplate() {
+			super(new SnapshotTemplate());
+		}
+
+		void rule(String from, ToIntFunction<SqlParameterSource> count) {
+			rules.put(from, count);
+		}
+
+		void snapshot(String sql, List<String> columns, List<Object[]> rows) {
+			((SnapshotTemplate) getJdbcTemplate()).snapshots.put(sql, () -> resultSet(columns, rows));
+		}
+
+		int snapshotLoads() {
+			return ((SnapshotTemplate) getJdbcTemplate()).loads.get();
+		}
+
+		@Override
+		public void query(String sql, SqlParameterSource paramSource, RowCallbackHandler rch) throws DataAccessException {
+			statements.add(sql);
+			List<Object[]> rows = new ArrayList<>();
+			for(String part : sql.split(" UNION ALL ")) {
+				Matcher m = TAGGED.matcher(part);
+				assertTrue(m.matches(), part);
+				rows.add(new Object[] { Integer.valueOf(m.group(1)), count(m.group(2), paramSource) });
+			}
+			ResultSet rs = resultSet(List.of("rule", "matches"), rows);
+			try {
+				while(rs.next()) {
+					rch.processRow(rs);
+				}
+			} catch(SQLException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		@Override
+		public <T> T queryForObject(String sql, SqlParameterSource paramSource, Class<T> requiredType) throws DataAccessException {
+			statements.add(sql);
+			Matcher m = COUNT.matcher(sql);
+			assertTrue(m.matches(), sql);
+			return requiredType.cast(count(m.group(1), paramSource));
+		}
+
+		private Integer count(String from, SqlParameterSource paramSource) {
+			ToIntFunction<SqlParameterSource> rule = rules.get(from);
+			assertNotNull(rule, from);
+			return rule.applyAsInt(paramSource);
+		}
+	}
+
+	private static class SnapshotTemplate extends JdbcTemplate {
+
+		final Map<String, Supplier<ResultSet>> snapshots = new HashMap<>();
+		final AtomicInteger loads = new AtomicInteger();
+
+		@Override
+		public <T> T query(String sql, ResultSetExtractor<T> rse) throws DataAccessException {
+			Supplier<ResultSet> rows = snapshots.get(sql);
+			assertNotNull(rows, sql);
+			loads.incrementAndGet();
+			try {
+				return rse.extractData(rows.get());
+			} catch(SQLException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+
+	/**
+	 * A forward only ResultSet over the rows
+	 */
+	private static ResultSet resultSet(List<String> columns, List<Object[]> rows) {
+		ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+			ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+			(proxy, method, args) -> switch(method.getName()) {
+				case "getColumnCount" -> columns.size();
+				case "getColumnLabel", "getColumnName" -> columns.get((Integer) args[0] - 1);
+				default -> throw new UnsupportedOperationException(method.getName());
+			});
+		int[] row = { -1 };
+		return (ResultSet) Proxy.newProxyInstance(
+			ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+			(proxy, method, args) -> switch(method.getName()) {
+				case "next" -> ++row[0] < rows.size();
+				case "getMetaData" -> meta;
+				case "getInt" -> ((Number) rows.get(row[0])[(Integer) args[0] - 1]).intValue();
+				case "getString" -> Objects.toString(rows.get(row[0])[(Integer) args[0] - 1], null);
+				default -> throw new UnsupportedOperationException(method.getName());
+			});
+	}
+}
@@ -0,0 +1,62 @@
+package org.avlis.vaultsync.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChecksumUtilTests {
+
+	// SHA-512("abc") from FIPS 180-2
+	private static final String ABC_SHA512 =
+		"ddaf35a193617abacc417349ae20413112e6fa4e89a97ea20a9eeee64b55d39a"+
+		"2192992a274fc1a836ba3c23a3feebbd454d4423643ce80e2a9ac94fa54ca49f";
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void checksumMatchesKnownVector() throws Exception {
+		ChecksumUtil checksumUtil = new ChecksumUtil();
+		byte[] abc = "abc".getBytes(StandardCharsets.US_ASCII);
+		Path file = Files.write(tempDir.resolve("abc.bic"), abc);
+
+		assertEquals(ABC_SHA512, checksumUtil.getChecksum(abc));
+		assertEquals(ABC_SHA512, checksumUtil.getChecksum(file));
+	}
+
+	@Test
+	void concurrentChecksumsDoNotInterfere() throws Exception {
+		ChecksumUtil checksumUtil = new ChecksumUtil();
+		Random random = new Random(7);
+		List<byte[]> payloads = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for(int i = 0; i < 16; i++) {
+			byte[] payload = new byte[200_000 + i];
+			random.nextBytes(payload);
+			payloads.add(payload);
+			expected.add(checksumUtil.getChecksum(payload));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for(int round = 0; round < 10; round++) {
+				for(byte[] payload : payloads) {
+					results.add(executor.submit(() -> checksumUtil.getChecksum(payload)));
+				}
+			}
+			for(int i = 0; i < results.size(); i++) {
+				assertEquals(expected.get(i % payloads.size()), results.get(i).get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
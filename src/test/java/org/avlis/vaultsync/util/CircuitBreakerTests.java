@@ -0,0 +1,87 @@
+package org.avlis.vaultsync.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.avlis.vaultsync.util.CircuitBreaker.State;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTests {
+
+	private static final long OPEN_MILLIS = 100;
+
+	@Test
+	void opensAfterThresholdFailuresInARow() {
+		CircuitBreaker breaker = new CircuitBreaker(3, OPEN_MILLIS);
+
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+
+		breaker.recordFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		assertEquals(3, breaker.getFailures());
+		assertFalse(breaker.tryAcquire());
+		assertFalse(breaker.isAvailable());
+		assertTrue(breaker.getRetryAfterSeconds() >= 1);
+	}
+
+	@Test
+	void successResetsTheCount() {
+		CircuitBreaker breaker = new CircuitBreaker(3, OPEN_MILLIS);
+
+		breaker.recordFailure();
+		breaker.recordFailure();
+		breaker.recordSuccess();
+		breaker.recordFailure();
+		breaker.recordFailure();
+
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(2, breaker.getFailures());
+	}
+
+	@Test
+	void halfOpenLetsOneTrialThroughAndItsSuccessCloses() throws Exception {
+		CircuitBreaker breaker = open();
+
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.isAvailable());
+		assertEquals(0, breaker.getRetryAfterSeconds());
+
+		assertTrue(breaker.tryAcquire());
+		// only the one trial
+		assertFalse(breaker.tryAcquire());
+		assertFalse(breaker.isAvailable());
+		assertEquals(1, breaker.getRetryAfterSeconds());
+
+		breaker.recordSuccess();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getFailures());
+		assertTrue(breaker.tryAcquire());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	void failedTrialReopens() throws Exception {
+		CircuitBreaker breaker = open();
+
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertTrue(breaker.tryAcquire());
+		breaker.recordFailure();
+
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	private static CircuitBreaker open() {
+		CircuitBreaker breaker = new CircuitBreaker(1, OPEN_MILLIS);
+		breaker.recordFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		return breaker;
+	}
+}
@@ -0,0 +1,99 @@
+package org.avlis.vaultsync.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileWatcherTests {
+
+	private static final long QUIET_MILLIS = 300;
+	// well past the quiet time, for a callback that's expected
+	private static final long SETTLE_MILLIS = 5000;
+
+	@TempDir
+	Path dir;
+
+	private final AtomicInteger changes = new AtomicInteger();
+
+	@Test
+	void writesCloseTogetherAreOneChange() throws Exception {
+		Path file = Files.writeString(dir.resolve("peers.yml"), "0");
+		FileWatcher watcher = new FileWatcher(file, QUIET_MILLIS, "test-watcher", changes::incrementAndGet);
+		try {
+			for(int i = 1; i <= 5; i++) {
+				Files.writeString(file, String.valueOf(i));
+				Thread.sleep(QUIET_MILLIS / 5);
+			}
+			awaitChanges(1);
+			Thread.sleep(QUIET_MILLIS * 3);
+			assertEquals(1, changes.get());
+
+			Files.writeString(file, "again");
+			awaitChanges(2);
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void replacedFileIsAChange() throws Exception {
+		Path file = Files.writeString(dir.resolve("peers.yml"), "old");
+		FileWatcher watcher = new FileWatcher(file, QUIET_MILLIS, "test-watcher", changes::incrementAndGet);
+		try {
+			// how editors and config management save
+			Path saved = Files.writeString(dir.resolve("peers.yml.tmp"), "new");
+			Files.move(saved, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			awaitChanges(1);
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void otherFilesInTheDirectoryAreIgnored() throws Exception {
+		Path file = Files.writeString(dir.resolve("peers.yml"), "0");
+		FileWatcher watcher = new FileWatcher(file, QUIET_MILLIS, "test-watcher", changes::incrementAndGet);
+		try {
+			Files.writeString(dir.resolve("denylist.txt"), "1.2.3.4");
+			Thread.sleep(QUIET_MILLIS * 4);
+			assertEquals(0, changes.get());
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void failingCallbackKeepsWatching() throws Exception {
+		Path file = Files.writeString(dir.resolve("peers.yml"), "0");
+		Runnable onChange = () -> {
+			if(changes.incrementAndGet() == 1) {
+				throw new IllegalStateException("bad reload");
+			}
+		};
+		FileWatcher watcher = new FileWatcher(file, QUIET_MILLIS, "test-watcher", onChange);
+		try {
+			Files.writeString(file, "1");
+			awaitChanges(1);
+			Files.writeString(file, "2");
+			awaitChanges(2);
+		} finally {
+			watcher.close();
+		}
+	}
+
+	private void awaitChanges(int expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+		while(changes.get() < expected && System.nanoTime() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(expected, changes.get());
+	}
+}
@@ -0,0 +1,87 @@
+package org.avlis.vaultsync.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.web.util.matcher.IpAddressMatcher;
+
+class SubnetMatcherTests {
+
+	// the sample config's default
+	private static final String SUBNET = "::1,127.0.0.1,172.16.0.0/12,192.168.0.0/16";
+
+	@Test
+	void matchesTheSampleSubnet() {
+		SubnetMatcher matcher = SubnetMatcher.compile(SUBNET);
+
+		assertTrue(matcher.matches("127.0.0.1"));
+		assertTrue(matcher.matches("172.16.0.1"));
+		assertTrue(matcher.matches("172.31.255.255"));
+		assertTrue(matcher.matches("192.168.1.20"));
+		assertTrue(matcher.matches("::1"));
+		assertTrue(matcher.matches("0:0:0:0:0:0:0:1"));
+		assertTrue(matcher.matches("::ffff:192.168.1.20"));
+		assertTrue(matcher.matches("::1%lo"));
+
+		assertFalse(matcher.matches("127.0.0.2"));
+		assertFalse(matcher.matches("172.32.0.1"));
+		assertFalse(matcher.matches("203.0.113.9"));
+		assertFalse(matcher.matches("::2"));
+		assertFalse(matcher.matches("fe80::1%eth0"));
+		assertFalse(matcher.matches(null));
+	}
+
+	@Test
+	void agreesWithIpAddressMatcher() {
+		List<String> masks = List.of("10.0.0.0/8", "192.168.7.9/23", "0.0.0.0/0", "2001:db8::/32",
+			"fe80::/10", "2001:db8:1:2:3:4:5:6/127", "::ffff:10.1.0.0");
+		List<String> addresses = List.of("10.255.1.2", "11.0.0.1", "192.168.6.1", "192.168.8.1",
+			"2001:db8::1", "2001:db9::1", "2001:0db8:0000:0000:0000:0000:0000:0001", "fe80::1",
+			"febf:ffff::1", "fec0::1", "2001:db8:1:2:3:4:5:7", "2001:db8:1:2:3:4:5:8",
+			"::ffff:10.1.2.3", "10.1.2.3", "::10.1.2.3", "1:2:3:4:5:6:7::", "::");
+
+		for(String mask : masks) {
+			SubnetMatcher matcher = SubnetMatcher.compile(mask);
+			IpAddressMatcher expected = new IpAddressMatcher(mask);
+			for(String address : addresses) {
+				assertEquals(expected.matches(address), matcher.matches(address), mask+" vs "+address);
+			}
+		}
+	}
+
+	@Test
+	void mappedMasksMatchIpv4() {
+		SubnetMatcher matcher = SubnetMatcher.compile("::ffff:10.1.0.0/112");
+
+		assertTrue(matcher.matches("10.1.2.3"));
+		assertTrue(matcher.matches("::ffff:10.1.2.3"));
+		assertFalse(matcher.matches("10.2.0.1"));
+	}
+
+	@Test
+	void disabledMatchesEverything() {
+		SubnetMatcher matcher = SubnetMatcher.compile("disabled");
+
+		assertTrue(matcher.matches("203.0.113.9"));
+		assertTrue(matcher.matches("2001:db8::1"));
+	}
+
+	@Test
+	void malformedAddressesDoNotMatch() {
+		SubnetMatcher matcher = SubnetMatcher.compile("0.0.0.0/0,::/0");
+
+		for(String address : List.of("", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.4.",
+				":", ":::", "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::", "g::1", "::1.2.3", "localhost")) {
+			assertFalse(matcher.matches(address), address);
+		}
+	}
+
+	@Test
+	void rejectsInvalidEntries() {
+		for(String subnet : List.of("localhost", "10.0.0.0/33", "::/129", "10.0.0.0/x", "10.0.0.0/-1", "1::2::3")) {
+			assertThrows(IllegalArgumentException.class, () -> SubnetMatcher.compile(subnet), subnet);
+		}
+	}
+}